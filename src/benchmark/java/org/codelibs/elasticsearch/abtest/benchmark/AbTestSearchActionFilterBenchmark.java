@@ -0,0 +1,102 @@
+package org.codelibs.elasticsearch.abtest.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AbTestSearchActionFilter.apply for a search request without ab_rt, with raw ab_rt and with hashed ab_rt.
+ * A search request is created per operation, as the filter rewrites it;
+ * "baseline" measures only the creation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AbTestSearchActionFilterBenchmark {
+    private static final int RT_SIZE = 1024;
+
+    private static final ActionListener<SearchResponse> LISTENER = new ActionListener<SearchResponse>() {
+        @Override
+        public void onResponse(final SearchResponse response) {
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+        }
+    };
+
+    @Param({ "baseline", "none", "raw", "hashed" })
+    public String mode;
+
+    @Param({ "1", "100" })
+    public int testCases;
+
+    private AbTestSearchActionFilter filter;
+
+    private final String[] rts = new String[RT_SIZE];
+
+    private int next;
+
+    private ActionRequest proceeded;
+
+    private final ActionFilterChain chain = new ActionFilterChain() {
+        @Override
+        public void proceed(final String action, final ActionRequest request, final ActionListener listener) {
+            proceeded = request;
+        }
+
+        @Override
+        public void proceed(final String action, final ActionResponse response, final ActionListener listener) {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        filter = new AbTestSearchActionFilter(ImmutableSettings.EMPTY);
+        final BenchmarkAbTestService service = new BenchmarkAbTestService(filter, "sample");
+        service.putTestSweet("sample", testCases);
+        for (int i = 0; i < RT_SIZE; i++) {
+            rts[i] = "raw".equals(mode) ? Integer.toString(i * 9 % BenchmarkAbTestService.BUCKETS)
+                : "user-" + Integer.toHexString(i * 7919);
+        }
+    }
+
+    @Benchmark
+    public ActionRequest apply() {
+        final SearchRequest request = new SearchRequest("sample");
+        if ("baseline".equals(mode)) {
+            return request;
+        }
+        if (!"none".equals(mode)) {
+            next = (next + 1) & (RT_SIZE - 1);
+            request.putInContext("ab_rt", rts[next]);
+            if ("raw".equals(mode)) {
+                request.putInContext("hash_rt", "false");
+            }
+        }
+        filter.apply(SearchAction.NAME, request, LISTENER, chain);
+        return proceeded;
+    }
+}
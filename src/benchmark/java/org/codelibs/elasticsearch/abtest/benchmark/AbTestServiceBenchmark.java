@@ -0,0 +1,91 @@
+package org.codelibs.elasticsearch.abtest.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
+import org.codelibs.elasticsearch.abtest.service.Variant;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bucketing and routing of AbTestService for hashed and raw ab_rt, and without ab_rt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AbTestServiceBenchmark {
+    private static final int RT_SIZE = 1024;
+
+    @Param({ "1", "10", "100" })
+    public int testCases;
+
+    private BenchmarkAbTestService service;
+
+    private final String[] hashedRts = new String[RT_SIZE];
+
+    private final String[] rawRts = new String[RT_SIZE];
+
+    private int next;
+
+    private List<Variant> variants;
+
+    private final Consumer<List<Variant>> consumer = v -> variants = v;
+
+    @Setup
+    public void setup() {
+        service = new BenchmarkAbTestService(new AbTestSearchActionFilter(ImmutableSettings.EMPTY), "sample");
+        service.putTestSweet("sample", testCases);
+        for (int i = 0; i < RT_SIZE; i++) {
+            hashedRts[i] = "user-" + Integer.toHexString(i * 7919);
+            rawRts[i] = Integer.toString(i * 9 % BenchmarkAbTestService.BUCKETS);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (RT_SIZE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public int convertTestCaseKey() {
+        return service.convertTestCaseKey(hashedRts[nextIndex()], 0, BenchmarkAbTestService.BUCKETS);
+    }
+
+    @Benchmark
+    public boolean validateRt() {
+        return service.validate(rawRts[nextIndex()]);
+    }
+
+    @Benchmark
+    public List<Variant> rewriteIndex_hashed() {
+        service.rewriteIndex("sample", hashedRts[nextIndex()], true, null, null, consumer);
+        return variants;
+    }
+
+    @Benchmark
+    public List<Variant> rewriteIndex_raw() {
+        service.rewriteIndex("sample", rawRts[nextIndex()], false, null, null, consumer);
+        return variants;
+    }
+
+    @Benchmark
+    public List<Variant> rewriteIndex_none() {
+        service.rewriteIndex("sample", null, true, null, null, consumer);
+        return variants;
+    }
+}
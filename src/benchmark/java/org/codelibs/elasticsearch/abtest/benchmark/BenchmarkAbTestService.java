@@ -0,0 +1,66 @@
+package org.codelibs.elasticsearch.abtest.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
+import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.codelibs.elasticsearch.abtest.service.RoutingTable;
+import org.codelibs.elasticsearch.abtest.service.TestSweet;
+import org.codelibs.elasticsearch.abtest.stats.AbTestStats;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * AbTestService without a node.
+ * Routing tables are put directly and cluster metadata is fixed,
+ * so only the in-memory routing path is measured.
+ */
+public class BenchmarkAbTestService extends AbTestService {
+    public static final int BUCKETS = 10000;
+
+    private static final Settings SETTINGS =
+        ImmutableSettings.settingsBuilder().put(SETTING_STORE_TYPE, STORE_TYPE_CLUSTER_STATE)
+            .put(SETTING_PRELOAD_ENABLED, false).build();
+
+    private final MetaData metaData;
+
+    public BenchmarkAbTestService(final AbTestSearchActionFilter filter, final String... indices) {
+        super(SETTINGS, null, null, new ActionFilters(ImmutableSet.<ActionFilter> of(filter)), null, null, null,
+            new AbTestStats(SETTINGS), null);
+        final MetaData.Builder builder = MetaData.builder();
+        for (final String index : indices) {
+            builder.put(IndexMetaData.builder(index)
+                .settings(ImmutableSettings.settingsBuilder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT.id))
+                .numberOfShards(1).numberOfReplicas(0));
+        }
+        this.metaData = builder.build();
+    }
+
+    /**
+     * Puts a test sweet whose test cases share a half of the buckets equally.
+     */
+    public void putTestSweet(final String name, final int size) {
+        final List<TestCase> testCases = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            testCases.add(new TestCase("test" + i, name + "_" + i, 50.0 / size));
+        }
+        final TestSweet testSweet = TestSweet.builder(name).buckets(BUCKETS).testCases(testCases).build();
+        routingTables.put(name, RoutingTable.build(testSweet, 0L, stats));
+    }
+
+    public boolean validate(final String rt) {
+        return validateRt(rt);
+    }
+
+    @Override
+    protected MetaData metaData() {
+        return metaData;
+    }
+}
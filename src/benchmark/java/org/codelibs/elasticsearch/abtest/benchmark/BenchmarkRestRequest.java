@@ -0,0 +1,94 @@
+package org.codelibs.elasticsearch.abtest.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * RestRequest with fixed parameters and headers.
+ */
+public class BenchmarkRestRequest extends RestRequest {
+    private final String path;
+
+    private final Map<String, String> params = new HashMap<>();
+
+    private final Map<String, String> headers = new HashMap<>();
+
+    public BenchmarkRestRequest(final String path) {
+        this.path = path;
+    }
+
+    public BenchmarkRestRequest param(final String key, final String value) {
+        params.put(key, value);
+        return this;
+    }
+
+    public BenchmarkRestRequest header(final String name, final String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    @Override
+    public Method method() {
+        return Method.GET;
+    }
+
+    @Override
+    public String uri() {
+        return path;
+    }
+
+    @Override
+    public String rawPath() {
+        return path;
+    }
+
+    @Override
+    public boolean hasContent() {
+        return false;
+    }
+
+    @Override
+    public boolean contentUnsafe() {
+        return false;
+    }
+
+    @Override
+    public BytesReference content() {
+        return BytesArray.EMPTY;
+    }
+
+    @Override
+    public String header(final String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, String>> headers() {
+        return headers.entrySet();
+    }
+
+    @Override
+    public boolean hasParam(final String key) {
+        return params.containsKey(key);
+    }
+
+    @Override
+    public String param(final String key) {
+        return params.get(key);
+    }
+
+    @Override
+    public String param(final String key, final String defaultValue) {
+        final String value = params.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public Map<String, String> params() {
+        return params;
+    }
+}
@@ -0,0 +1,76 @@
+package org.codelibs.elasticsearch.abtest.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.abtest.filter.rest.PutParamToContextRestFilter;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestFilterChain;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PutParamToContextRestFilter.process for a non-search request, a search request without ab_rt,
+ * and search requests with ab_rt as a parameter, a header and a cookie.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutParamToContextRestFilterBenchmark {
+
+    @Param({ "other", "none", "param", "header", "cookie" })
+    public String mode;
+
+    private PutParamToContextRestFilter filter;
+
+    private RestRequest request;
+
+    private RestChannel channel;
+
+    private RestChannel proceeded;
+
+    private final RestFilterChain chain = (request, channel) -> proceeded = channel;
+
+    @Setup
+    public void setup() {
+        filter = new PutParamToContextRestFilter();
+        final BenchmarkRestRequest restRequest;
+        if ("other".equals(mode)) {
+            restRequest = new BenchmarkRestRequest("/sample/_abtest/settings").param("index", "sample");
+        } else {
+            restRequest = new BenchmarkRestRequest("/sample/_search").param("index", "sample").param("q", "*:*");
+            if ("param".equals(mode)) {
+                restRequest.param("ab_rt", "user-1234");
+            } else if ("header".equals(mode)) {
+                restRequest.header("X-AbTest-Rt", "user-1234");
+            } else if ("cookie".equals(mode)) {
+                restRequest.header("Cookie", "session=abcdef; ab_rt=user-1234; lang=en");
+            }
+        }
+        request = restRequest;
+        channel = new RestChannel(request, true) {
+            @Override
+            public void sendResponse(final RestResponse response) {
+            }
+        };
+    }
+
+    @Benchmark
+    public RestChannel process() throws Exception {
+        filter.process(request, channel, chain);
+        return proceeded;
+    }
+}
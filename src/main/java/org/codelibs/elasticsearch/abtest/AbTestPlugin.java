@@ -2,11 +2,24 @@ package org.codelibs.elasticsearch.abtest;
 
 import java.util.Collection;
 
+import org.codelibs.elasticsearch.abtest.action.AbTestStatsAction;
+import org.codelibs.elasticsearch.abtest.action.TransportAbTestStatsAction;
+import org.codelibs.elasticsearch.abtest.action.TransportUpdateTestSweetAction;
+import org.codelibs.elasticsearch.abtest.action.UpdateTestSweetAction;
+import org.codelibs.elasticsearch.abtest.cluster.AbTestMetaData;
+import org.codelibs.elasticsearch.abtest.event.ImpressionLog;
 import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
 import org.codelibs.elasticsearch.abtest.module.AbTestModule;
+import org.codelibs.elasticsearch.abtest.rest.AbTestBulkSettingsRestAction;
+import org.codelibs.elasticsearch.abtest.rest.AbTestFeedbackRestAction;
+import org.codelibs.elasticsearch.abtest.rest.AbTestMigrateRestAction;
+import org.codelibs.elasticsearch.abtest.rest.AbTestRollbackRestAction;
 import org.codelibs.elasticsearch.abtest.rest.AbTestSettingsRestAction;
+import org.codelibs.elasticsearch.abtest.rest.AbTestStatsRestAction;
 import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.codelibs.elasticsearch.abtest.service.BanditAllocator;
 import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
@@ -14,6 +27,10 @@ import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 
 public class AbTestPlugin extends AbstractPlugin {
+    static {
+        MetaData.registerFactory(AbTestMetaData.TYPE, AbTestMetaData.FACTORY);
+    }
+
     @Override
     public String name() {
         return "AbTestPlugin";
@@ -27,9 +44,16 @@ public class AbTestPlugin extends AbstractPlugin {
     // for Rest API
     public void onModule(final RestModule module) {
         module.addRestAction(AbTestSettingsRestAction.class);
+        module.addRestAction(AbTestBulkSettingsRestAction.class);
+        module.addRestAction(AbTestMigrateRestAction.class);
+        module.addRestAction(AbTestRollbackRestAction.class);
+        module.addRestAction(AbTestStatsRestAction.class);
+        module.addRestAction(AbTestFeedbackRestAction.class);
     }
 
     public void onModule(final ActionModule module) {
+        module.registerAction(UpdateTestSweetAction.INSTANCE, TransportUpdateTestSweetAction.class);
+        module.registerAction(AbTestStatsAction.INSTANCE, TransportAbTestStatsAction.class);
         module.registerFilter(AbTestSearchActionFilter.class);
     }
 
@@ -49,6 +73,8 @@ public class AbTestPlugin extends AbstractPlugin {
         final Collection<Class<? extends LifecycleComponent>> services = Lists
                 .newArrayList();
         services.add(AbTestService.class);
+        services.add(ImpressionLog.class);
+        services.add(BanditAllocator.class);
         return services;
     }
 }
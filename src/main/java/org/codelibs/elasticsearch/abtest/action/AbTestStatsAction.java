@@ -0,0 +1,19 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import org.elasticsearch.action.GenericAction;
+
+public class AbTestStatsAction extends GenericAction<AbTestStatsRequest, AbTestStatsResponse> {
+
+    public static final AbTestStatsAction INSTANCE = new AbTestStatsAction();
+
+    public static final String NAME = "cluster:monitor/abtest/stats";
+
+    private AbTestStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public AbTestStatsResponse newResponse() {
+        return new AbTestStatsResponse();
+    }
+}
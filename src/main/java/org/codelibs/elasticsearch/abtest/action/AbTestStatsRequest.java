@@ -0,0 +1,40 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * Collects test case statistics of test sweets, or of all test sweets if none is given, from nodes.
+ */
+public class AbTestStatsRequest extends NodesOperationRequest<AbTestStatsRequest> {
+
+    private String[] testSweets = new String[0];
+
+    public AbTestStatsRequest(final String... nodesIds) {
+        super(nodesIds);
+    }
+
+    public AbTestStatsRequest testSweets(final String... testSweets) {
+        this.testSweets = testSweets;
+        return this;
+    }
+
+    public String[] testSweets() {
+        return testSweets;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        testSweets = in.readStringArray();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStringArray(testSweets);
+    }
+}
@@ -0,0 +1,111 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.codelibs.elasticsearch.abtest.stats.TestCaseStats;
+import org.elasticsearch.action.support.nodes.NodesOperationResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Test case statistics of nodes, which are merged into cluster-wide statistics.
+ */
+public class AbTestStatsResponse extends NodesOperationResponse<NodeAbTestStats> implements ToXContent {
+
+    AbTestStatsResponse() {
+    }
+
+    public AbTestStatsResponse(final ClusterName clusterName, final NodeAbTestStats[] nodes) {
+        super(clusterName, nodes);
+    }
+
+    /**
+     * Returns statistics merged across nodes, sorted by test sweet and test name.
+     */
+    public Map<String, Map<String, TestCaseStats>> getTestSweets() {
+        final Map<String, Map<String, TestCaseStats>> testSweets = new TreeMap<>();
+        for (final NodeAbTestStats node : getNodes()) {
+            for (final Map.Entry<String, Map<String, TestCaseStats>> entry : node.getTestSweets().entrySet()) {
+                Map<String, TestCaseStats> testCases = testSweets.get(entry.getKey());
+                if (testCases == null) {
+                    testCases = new TreeMap<>();
+                    testSweets.put(entry.getKey(), testCases);
+                }
+                for (final Map.Entry<String, TestCaseStats> testCase : entry.getValue().entrySet()) {
+                    final TestCaseStats stats = testCases.get(testCase.getKey());
+                    if (stats == null) {
+                        testCases.put(testCase.getKey(), testCase.getValue().copy());
+                    } else {
+                        stats.add(testCase.getValue());
+                    }
+                }
+            }
+        }
+        return testSweets;
+    }
+
+    /**
+     * Returns impression event counters summed across nodes: buffered, indexed, failed and dropped.
+     */
+    public long[] getEvents() {
+        final long[] events = new long[4];
+        for (final NodeAbTestStats node : getNodes()) {
+            final long[] nodeEvents = node.getEvents();
+            for (int i = 0; i < events.length && i < nodeEvents.length; i++) {
+                events[i] += nodeEvents[i];
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        nodes = new NodeAbTestStats[in.readVInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = NodeAbTestStats.readNodeAbTestStats(in);
+        }
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(nodes.length);
+        for (final NodeAbTestStats node : nodes) {
+            node.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject("_nodes");
+        builder.field("total", nodes.length);
+        builder.endObject();
+        final long[] events = getEvents();
+        builder.startObject("events");
+        builder.field("buffered", events[0]);
+        builder.field("indexed", events[1]);
+        builder.field("failed", events[2]);
+        builder.field("dropped", events[3]);
+        builder.endObject();
+        builder.startObject("testsweets");
+        for (final Map.Entry<String, Map<String, TestCaseStats>> entry : getTestSweets().entrySet()) {
+            builder.startObject(entry.getKey());
+            builder.startObject("testcases");
+            for (final Map.Entry<String, TestCaseStats> testCase : entry.getValue().entrySet()) {
+                builder.startObject(testCase.getKey());
+                testCase.getValue().toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,85 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.abtest.stats.TestCaseStats;
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * Test case statistics of a node.
+ */
+public class NodeAbTestStats extends NodeOperationResponse {
+
+    // test sweet name -> test name -> stats
+    private Map<String, Map<String, TestCaseStats>> testSweets;
+
+    // impression events: buffered, indexed, failed, dropped
+    private long[] events;
+
+    NodeAbTestStats() {
+    }
+
+    public NodeAbTestStats(final DiscoveryNode node, final Map<String, Map<String, TestCaseStats>> testSweets,
+            final long[] events) {
+        super(node);
+        this.testSweets = testSweets;
+        this.events = events;
+    }
+
+    public Map<String, Map<String, TestCaseStats>> getTestSweets() {
+        return testSweets;
+    }
+
+    public long[] getEvents() {
+        return events;
+    }
+
+    public static NodeAbTestStats readNodeAbTestStats(final StreamInput in) throws IOException {
+        final NodeAbTestStats stats = new NodeAbTestStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        final int size = in.readVInt();
+        testSweets = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            final String testSweetName = in.readString();
+            final int testCaseSize = in.readVInt();
+            final Map<String, TestCaseStats> testCases = new HashMap<>(testCaseSize);
+            for (int j = 0; j < testCaseSize; j++) {
+                testCases.put(in.readString(), TestCaseStats.readTestCaseStats(in));
+            }
+            testSweets.put(testSweetName, testCases);
+        }
+        events = new long[in.readVInt()];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = in.readVLong();
+        }
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(testSweets.size());
+        for (final Map.Entry<String, Map<String, TestCaseStats>> entry : testSweets.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeVInt(entry.getValue().size());
+            for (final Map.Entry<String, TestCaseStats> testCase : entry.getValue().entrySet()) {
+                out.writeString(testCase.getKey());
+                testCase.getValue().writeTo(out);
+            }
+        }
+        out.writeVInt(events.length);
+        for (final long value : events) {
+            out.writeVLong(value);
+        }
+    }
+}
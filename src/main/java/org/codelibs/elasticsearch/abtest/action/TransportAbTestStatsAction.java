@@ -0,0 +1,114 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.codelibs.elasticsearch.abtest.event.ImpressionLog;
+import org.codelibs.elasticsearch.abtest.stats.AbTestStats;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportAbTestStatsAction extends TransportNodesOperationAction<AbTestStatsRequest, AbTestStatsResponse,
+        TransportAbTestStatsAction.NodeRequest, NodeAbTestStats> {
+
+    private final AbTestStats stats;
+
+    private final ImpressionLog impressionLog;
+
+    @Inject
+    public TransportAbTestStatsAction(final Settings settings, final ClusterName clusterName, final ThreadPool threadPool,
+            final ClusterService clusterService, final TransportService transportService, final ActionFilters actionFilters,
+            final AbTestStats stats, final ImpressionLog impressionLog) {
+        super(settings, AbTestStatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters);
+        this.stats = stats;
+        this.impressionLog = impressionLog;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.MANAGEMENT;
+    }
+
+    @Override
+    protected AbTestStatsRequest newRequest() {
+        return new AbTestStatsRequest();
+    }
+
+    @Override
+    protected AbTestStatsResponse newResponse(final AbTestStatsRequest request,
+            @SuppressWarnings("rawtypes") final AtomicReferenceArray responses) {
+        final List<NodeAbTestStats> nodes = new ArrayList<>();
+        for (int i = 0; i < responses.length(); i++) {
+            final Object response = responses.get(i);
+            if (response instanceof NodeAbTestStats) {
+                nodes.add((NodeAbTestStats) response);
+            }
+        }
+        return new AbTestStatsResponse(clusterName, nodes.toArray(new NodeAbTestStats[nodes.size()]));
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest() {
+        return new NodeRequest();
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(final String nodeId, final AbTestStatsRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected NodeAbTestStats newNodeResponse() {
+        return new NodeAbTestStats();
+    }
+
+    @Override
+    protected NodeAbTestStats nodeOperation(final NodeRequest request) throws ElasticsearchException {
+        final long[] events = { impressionLog.buffered(), impressionLog.indexed(), impressionLog.failed(),
+            impressionLog.dropped() };
+        return new NodeAbTestStats(clusterService.localNode(), stats.stats(request.request.testSweets()), events);
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    static class NodeRequest extends NodeOperationRequest {
+
+        AbTestStatsRequest request;
+
+        NodeRequest() {
+        }
+
+        NodeRequest(final String nodeId, final AbTestStatsRequest request) {
+            super(request, nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new AbTestStatsRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
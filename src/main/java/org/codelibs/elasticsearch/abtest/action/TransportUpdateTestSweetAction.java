@@ -0,0 +1,76 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import org.codelibs.elasticsearch.abtest.cluster.AbTestMetaData;
+import org.codelibs.elasticsearch.abtest.service.TestSweet;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.master.TransportMasterNodeOperationAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ProcessedClusterStateUpdateTask;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportUpdateTestSweetAction
+        extends TransportMasterNodeOperationAction<UpdateTestSweetRequest, UpdateTestSweetResponse> {
+
+    private final int historySize;
+
+    @Inject
+    public TransportUpdateTestSweetAction(final Settings settings, final TransportService transportService,
+            final ClusterService clusterService, final ThreadPool threadPool, final ActionFilters actionFilters) {
+        super(settings, UpdateTestSweetAction.NAME, transportService, clusterService, threadPool, actionFilters);
+        this.historySize = settings.getAsInt(TestSweet.SETTING_HISTORY_SIZE, TestSweet.DEFAULT_HISTORY_SIZE);
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SAME;
+    }
+
+    @Override
+    protected UpdateTestSweetRequest newRequest() {
+        return new UpdateTestSweetRequest();
+    }
+
+    @Override
+    protected UpdateTestSweetResponse newResponse() {
+        return new UpdateTestSweetResponse();
+    }
+
+    @Override
+    protected ClusterBlockException checkBlock(final UpdateTestSweetRequest request, final ClusterState state) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.METADATA);
+    }
+
+    @Override
+    protected void masterOperation(final UpdateTestSweetRequest request, final ClusterState state,
+            final ActionListener<UpdateTestSweetResponse> listener) throws ElasticsearchException {
+        clusterService.submitStateUpdateTask("abtest-update", new ProcessedClusterStateUpdateTask() {
+            @Override
+            public ClusterState execute(final ClusterState currentState) {
+                final MetaData metaData = currentState.metaData();
+                final AbTestMetaData abTestMetaData =
+                    AbTestMetaData.get(metaData).update(request.puts(), request.deletes(), request.rollbacks(), historySize);
+                return ClusterState.builder(currentState)
+                    .metaData(MetaData.builder(metaData).putCustom(AbTestMetaData.TYPE, abTestMetaData)).build();
+            }
+
+            @Override
+            public void onFailure(final String source, final Throwable t) {
+                listener.onFailure(t);
+            }
+
+            @Override
+            public void clusterStateProcessed(final String source, final ClusterState oldState, final ClusterState newState) {
+                listener.onResponse(new UpdateTestSweetResponse(true));
+            }
+        });
+    }
+}
@@ -0,0 +1,19 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import org.elasticsearch.action.GenericAction;
+
+public class UpdateTestSweetAction extends GenericAction<UpdateTestSweetRequest, UpdateTestSweetResponse> {
+
+    public static final UpdateTestSweetAction INSTANCE = new UpdateTestSweetAction();
+
+    public static final String NAME = "cluster:admin/abtest/testsweet/update";
+
+    private UpdateTestSweetAction() {
+        super(NAME);
+    }
+
+    @Override
+    public UpdateTestSweetResponse newResponse() {
+        return new UpdateTestSweetResponse();
+    }
+}
@@ -0,0 +1,104 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.abtest.service.TestSweet;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.master.MasterNodeOperationRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * Puts, rolls back and deletes test sweets in the cluster state in one update.
+ */
+public class UpdateTestSweetRequest extends MasterNodeOperationRequest<UpdateTestSweetRequest> {
+
+    private final Map<String, TestSweet> puts = new LinkedHashMap<>();
+
+    private final List<String> deletes = new ArrayList<>();
+
+    // test sweet name -> version to switch back to, negative for the previous one
+    private final Map<String, Long> rollbacks = new LinkedHashMap<>();
+
+    public UpdateTestSweetRequest() {
+    }
+
+    public UpdateTestSweetRequest put(final TestSweet testSweet) {
+        puts.put(testSweet.name, testSweet);
+        return this;
+    }
+
+    public UpdateTestSweetRequest delete(final String name) {
+        deletes.add(name);
+        return this;
+    }
+
+    public UpdateTestSweetRequest rollback(final String name, final long version) {
+        rollbacks.put(name, version);
+        return this;
+    }
+
+    public Map<String, TestSweet> puts() {
+        return puts;
+    }
+
+    public List<String> deletes() {
+        return deletes;
+    }
+
+    public Map<String, Long> rollbacks() {
+        return rollbacks;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (puts.isEmpty() && deletes.isEmpty() && rollbacks.isEmpty()) {
+            validationException = addValidationError("no test sweet to update", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        final int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            final String name = in.readString();
+            puts.put(name, TestSweet.parse(name, in.readMap()));
+        }
+        final int deleteSize = in.readVInt();
+        for (int i = 0; i < deleteSize; i++) {
+            deletes.add(in.readString());
+        }
+        final int rollbackSize = in.readVInt();
+        for (int i = 0; i < rollbackSize; i++) {
+            rollbacks.put(in.readString(), in.readLong());
+        }
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(puts.size());
+        for (final TestSweet testSweet : puts.values()) {
+            out.writeString(testSweet.name);
+            out.writeMap(testSweet.source());
+        }
+        out.writeVInt(deletes.size());
+        for (final String name : deletes) {
+            out.writeString(name);
+        }
+        out.writeVInt(rollbacks.size());
+        for (final Map.Entry<String, Long> entry : rollbacks.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+}
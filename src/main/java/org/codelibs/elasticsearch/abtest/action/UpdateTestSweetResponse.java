@@ -0,0 +1,35 @@
+package org.codelibs.elasticsearch.abtest.action;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+public class UpdateTestSweetResponse extends ActionResponse {
+
+    private boolean acknowledged;
+
+    UpdateTestSweetResponse() {
+    }
+
+    public UpdateTestSweetResponse(final boolean acknowledged) {
+        this.acknowledged = acknowledged;
+    }
+
+    public boolean isAcknowledged() {
+        return acknowledged;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        acknowledged = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBoolean(acknowledged);
+    }
+}
@@ -0,0 +1,141 @@
+package org.codelibs.elasticsearch.abtest.cluster;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.abtest.service.TestSweet;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+/**
+ * Test sweets stored in the cluster state.
+ */
+public class AbTestMetaData implements MetaData.Custom {
+    public static final String TYPE = "abtest";
+
+    public static final Factory FACTORY = new Factory();
+
+    public static final AbTestMetaData EMPTY = new AbTestMetaData(ImmutableMap.<String, TestSweet> of());
+
+    private final ImmutableMap<String, TestSweet> testSweets;
+
+    public AbTestMetaData(final ImmutableMap<String, TestSweet> testSweets) {
+        this.testSweets = testSweets;
+    }
+
+    public TestSweet testSweet(final String name) {
+        return testSweets.get(name);
+    }
+
+    public Collection<TestSweet> testSweets() {
+        return testSweets.values();
+    }
+
+    public AbTestMetaData update(final Map<String, TestSweet> puts, final Collection<String> deletes) {
+        return update(puts, deletes, Collections.emptyMap(), 0);
+    }
+
+    /**
+     * Publishes puts as new versions and switches test sweets back to versions of rollbacks.
+     * Up to historySize previous versions are kept for each test sweet.
+     */
+    public AbTestMetaData update(final Map<String, TestSweet> puts, final Collection<String> deletes,
+            final Map<String, Long> rollbacks, final int historySize) {
+        final Map<String, TestSweet> map = new HashMap<>(testSweets);
+        for (final TestSweet testSweet : puts.values()) {
+            map.put(testSweet.name, TestSweet.publish(map.get(testSweet.name), testSweet, historySize));
+        }
+        for (final Map.Entry<String, Long> entry : rollbacks.entrySet()) {
+            final TestSweet testSweet = map.get(entry.getKey());
+            if (testSweet == null) {
+                throw new IllegalArgumentException("Test sweet " + entry.getKey() + " does not exist.");
+            }
+            map.put(entry.getKey(), testSweet.rollback(entry.getValue(), historySize));
+        }
+        for (final String name : deletes) {
+            map.remove(name);
+        }
+        return new AbTestMetaData(ImmutableMap.copyOf(map));
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        return testSweets.equals(((AbTestMetaData) obj).testSweets);
+    }
+
+    @Override
+    public int hashCode() {
+        return testSweets.hashCode();
+    }
+
+    public static AbTestMetaData get(final MetaData metaData) {
+        final AbTestMetaData abTestMetaData = metaData.custom(TYPE);
+        return abTestMetaData != null ? abTestMetaData : EMPTY;
+    }
+
+    public static class Factory extends MetaData.Custom.Factory<AbTestMetaData> {
+
+        @Override
+        public String type() {
+            return TYPE;
+        }
+
+        @Override
+        public AbTestMetaData readFrom(final StreamInput in) throws IOException {
+            final int size = in.readVInt();
+            final ImmutableMap.Builder<String, TestSweet> builder = ImmutableMap.builder();
+            for (int i = 0; i < size; i++) {
+                final String name = in.readString();
+                builder.put(name, TestSweet.parse(name, in.readMap()));
+            }
+            return new AbTestMetaData(builder.build());
+        }
+
+        @Override
+        public void writeTo(final AbTestMetaData metaData, final StreamOutput out) throws IOException {
+            out.writeVInt(metaData.testSweets.size());
+            for (final TestSweet testSweet : metaData.testSweets.values()) {
+                out.writeString(testSweet.name);
+                out.writeMap(testSweet.source());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public AbTestMetaData fromXContent(final XContentParser parser) throws IOException {
+            final ImmutableMap.Builder<String, TestSweet> builder = ImmutableMap.builder();
+            for (final Map.Entry<String, Object> entry : parser.mapOrdered().entrySet()) {
+                builder.put(entry.getKey(), TestSweet.parse(entry.getKey(), (Map<String, Object>) entry.getValue()));
+            }
+            return new AbTestMetaData(builder.build());
+        }
+
+        @Override
+        public void toXContent(final AbTestMetaData metaData, final XContentBuilder builder, final ToXContent.Params params)
+                throws IOException {
+            for (final TestSweet testSweet : metaData.testSweets.values()) {
+                builder.field(testSweet.name, testSweet.source());
+            }
+        }
+
+        @Override
+        public EnumSet<MetaData.XContentContext> context() {
+            return MetaData.API_AND_GATEWAY;
+        }
+    }
+}
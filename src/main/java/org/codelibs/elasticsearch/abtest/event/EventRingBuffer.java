@@ -0,0 +1,88 @@
+package org.codelibs.elasticsearch.abtest.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free ring buffer with many producers and one consumer.
+ * Producers claim a slot by CAS on the tail and never block:
+ * when the buffer is full, the element is dropped and counted.
+ * The consumer must not drain concurrently.
+ */
+public class EventRingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    // written only by the consumer
+    private volatile long head;
+
+    private final LongAdder dropped = new LongAdder();
+
+    public EventRingBuffer(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds the element, or drops it if the buffer is full.
+     */
+    public boolean offer(final E element) {
+        while (true) {
+            final long t = tail.get();
+            if (t - head > mask) {
+                dropped.increment();
+                return false;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                slots.lazySet((int) t & mask, element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Passes up to max elements to the consumer in order and returns the number of them.
+     * An element whose slot is claimed but not written yet stops draining until the next call.
+     */
+    public int drain(final Consumer<E> consumer, final int max) {
+        long h = head;
+        int count = 0;
+        while (count < max) {
+            final int index = (int) h & mask;
+            final E element = slots.get(index);
+            if (element == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            h++;
+            head = h;
+            count++;
+            consumer.accept(element);
+        }
+        return count;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,26 @@
+package org.codelibs.elasticsearch.abtest.event;
+
+import org.codelibs.elasticsearch.abtest.service.Variant;
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * A search request which was served by a variant.
+ * The query is kept as bytes and converted when the event is flushed.
+ */
+public class ImpressionEvent {
+    public final long timestamp;
+
+    public final String rt;
+
+    public final Variant variant;
+
+    // null if the request has no body
+    public final BytesReference source;
+
+    public ImpressionEvent(final long timestamp, final String rt, final Variant variant, final BytesReference source) {
+        this.timestamp = timestamp;
+        this.rt = rt;
+        this.variant = variant;
+        this.source = source;
+    }
+}
@@ -0,0 +1,209 @@
+package org.codelibs.elasticsearch.abtest.event;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
+import org.codelibs.elasticsearch.abtest.service.Variant;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Log of impressions, i.e. which variant served a search request for which ab_rt.
+ * The search path only appends an event to a ring buffer.
+ * A background flusher drains it into .abtest-events-YYYY.MM.dd indices by bulk requests,
+ * sending the next bulk when the previous one completes.
+ * Events are dropped, not waited for, if the buffer is full.
+ */
+public class ImpressionLog extends AbstractLifecycleComponent<ImpressionLog> {
+    public static final String SETTING_ENABLED = "abtest.events.enabled";
+    public static final String SETTING_BUFFER_SIZE = "abtest.events.buffer_size";
+    public static final String SETTING_BULK_SIZE = "abtest.events.bulk_size";
+    public static final String SETTING_FLUSH_INTERVAL = "abtest.events.flush_interval";
+
+    public static final String INDEX_PREFIX = ".abtest-events-";
+    public static final String TYPE = "impression";
+
+    private static final DateTimeFormatter INDEX_DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy.MM.dd").withZone(ZoneOffset.UTC);
+
+    protected final Client client;
+
+    protected final ThreadPool threadPool;
+
+    protected final boolean enabled;
+
+    protected final int bulkSize;
+
+    protected final TimeValue flushInterval;
+
+    protected final EventRingBuffer<ImpressionEvent> buffer;
+
+    // true while a bulk request is in flight, so draining is single-threaded
+    protected final AtomicBoolean flushing = new AtomicBoolean();
+
+    protected final LongAdder indexed = new LongAdder();
+
+    protected final LongAdder failed = new LongAdder();
+
+    protected volatile ScheduledFuture<?> flushFuture;
+
+    @Inject
+    public ImpressionLog(final Settings settings, final Client client, final ThreadPool threadPool,
+                         final ActionFilters actionFilters) {
+        super(settings);
+        this.client = client;
+        this.threadPool = threadPool;
+        this.enabled = settings.getAsBoolean(SETTING_ENABLED, false);
+        this.bulkSize = settings.getAsInt(SETTING_BULK_SIZE, 1000);
+        this.flushInterval = settings.getAsTime(SETTING_FLUSH_INTERVAL, TimeValue.timeValueSeconds(1));
+        this.buffer = enabled ? new EventRingBuffer<>(settings.getAsInt(SETTING_BUFFER_SIZE, 65536)) : null;
+
+        for(final ActionFilter filter: actionFilters.filters()) {
+            if(filter instanceof AbTestSearchActionFilter) {
+                ((AbTestSearchActionFilter) filter).injectImpressionLog(this);
+            }
+        }
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        if (enabled) {
+            flushFuture = threadPool.scheduleWithFixedDelay(this::flush, flushInterval);
+        }
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        flush();
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Appends an event without blocking. Does nothing if the log is disabled.
+     */
+    public void log(final String rt, final Variant variant, final BytesReference source) {
+        if (enabled) {
+            buffer.offer(new ImpressionEvent(System.currentTimeMillis(), rt, variant, source));
+        }
+    }
+
+    /**
+     * Sends buffered events by bulk requests of up to bulk_size, one at a time.
+     */
+    protected void flush() {
+        if (!enabled || buffer.size() == 0 || !flushing.compareAndSet(false, true)) {
+            return;
+        }
+
+        final BulkRequest bulkRequest = new BulkRequest();
+        buffer.drain(event -> {
+            try {
+                bulkRequest.add(createIndexRequest(event));
+            } catch (final IOException e) {
+                // skip the event, so the others are still sent
+                logger.warn("Failed to create an impression event of {}.", e, event.rt);
+                failed.increment();
+            }
+        }, bulkSize);
+        if (bulkRequest.numberOfActions() == 0) {
+            flushing.set(false);
+            return;
+        }
+
+        client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(final BulkResponse response) {
+                for (final BulkItemResponse item : response) {
+                    if (item.isFailed()) {
+                        failed.increment();
+                    } else {
+                        indexed.increment();
+                    }
+                }
+                next();
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                logger.warn("Failed to index {} impression events.", e, bulkRequest.numberOfActions());
+                failed.add(bulkRequest.numberOfActions());
+                next();
+            }
+
+            private void next() {
+                flushing.set(false);
+                if (buffer.size() >= bulkSize) {
+                    threadPool.generic().execute(ImpressionLog.this::flush);
+                }
+            }
+        });
+    }
+
+    protected IndexRequest createIndexRequest(final ImpressionEvent event) throws IOException {
+        final Variant variant = event.variant;
+        final XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.field("@timestamp", event.timestamp);
+        builder.field("ab_rt", event.rt);
+        builder.field("testsweet", variant.testSweetName);
+        builder.field("test_name", variant.testName);
+        builder.field("index", variant.index(variant.testSweetName));
+        if (event.source != null && event.source.length() > 0) {
+            builder.field("query", event.source.toUtf8());
+        }
+        builder.endObject();
+        return new IndexRequest(indexName(event.timestamp), TYPE).source(builder);
+    }
+
+    protected String indexName(final long timestamp) {
+        return INDEX_PREFIX + INDEX_DATE_FORMAT.format(Instant.ofEpochMilli(timestamp));
+    }
+
+    public long buffered() {
+        return enabled ? buffer.size() : 0;
+    }
+
+    public long dropped() {
+        return enabled ? buffer.dropped() : 0;
+    }
+
+    public long indexed() {
+        return indexed.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+}
@@ -1,20 +1,174 @@
 package org.codelibs.elasticsearch.abtest.filter.rest;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codelibs.elasticsearch.abtest.filter.transport.AbTestActionListener;
+import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
+import org.elasticsearch.common.base.Strings;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestFilter;
 import org.elasticsearch.rest.RestFilterChain;
 import org.elasticsearch.rest.RestRequest;
 
+/**
+ * Puts A/B test parameters of search requests into the request context.
+ * Parameters with the targeting prefix and targeting headers are also put, so targeting rules
+ * of test sweets can read them.
+ * If ab_rt is given, the served variant and index are returned as response headers.
+ * Other requests pass through without any copy.
+ */
 public class PutParamToContextRestFilter extends RestFilter {
+    public static final String SETTING_PARAMS = "abtest.rest.params";
+    public static final String SETTING_RT_HEADER = "abtest.rest.rt_header";
+    public static final String SETTING_RT_COOKIE = "abtest.rest.rt_cookie";
+    public static final String SETTING_VARIANT_HEADER = "abtest.rest.variant_header";
+    public static final String SETTING_INDEX_HEADER = "abtest.rest.index_header";
+    public static final String SETTING_TARGETING_PREFIX = "abtest.rest.targeting_prefix";
+    public static final String SETTING_TARGETING_HEADERS = "abtest.rest.targeting_headers";
+
+    public static final String PARAM_RT = "ab_rt";
+    public static final String PARAM_HASH_RT = "hash_rt";
+    public static final String PARAM_TESTSWEET = "testsweet";
+
+    private static final String[] SEARCH_PATH_SUFFIXES =
+        { "/_search", "/_msearch", "/_search/template", "/_msearch/template" };
+
+    protected final String[] params;
+
+    protected final String rtHeader;
 
+    protected final String rtCookie;
+
+    // prefix of parameters which are put for targeting rules, or null
+    protected final String targetingPrefix;
+
+    // headers which are put for targeting rules by their names
+    protected final String[] targetingHeaders;
+
+    // key of AbTestActionListener headers -> HTTP header name
+    protected final Map<String, String> responseHeaderNames = new HashMap<>();
+
+    /**
+     * Creates a filter with the default settings; ES 1.7 has ImmutableSettings.EMPTY, not Settings.EMPTY.
+     */
     public PutParamToContextRestFilter() {
+        this(ImmutableSettings.EMPTY);
+    }
+
+    public PutParamToContextRestFilter(final Settings settings) {
         super();
+        params = settings.getAsArray(SETTING_PARAMS, new String[] { PARAM_RT, PARAM_HASH_RT, PARAM_TESTSWEET });
+        rtHeader = Strings.emptyToNull(settings.get(SETTING_RT_HEADER, "X-AbTest-Rt"));
+        rtCookie = Strings.emptyToNull(settings.get(SETTING_RT_COOKIE, PARAM_RT));
+        targetingPrefix = Strings.emptyToNull(settings.get(SETTING_TARGETING_PREFIX, "ab_"));
+        targetingHeaders = settings.getAsArray(SETTING_TARGETING_HEADERS);
+        final String variantHeader = settings.get(SETTING_VARIANT_HEADER, "X-AbTest-Variant");
+        if (!Strings.isNullOrEmpty(variantHeader)) {
+            responseHeaderNames.put(AbTestActionListener.HEADER_VARIANT, variantHeader);
+        }
+        final String indexHeader = settings.get(SETTING_INDEX_HEADER, "X-AbTest-Index");
+        if (!Strings.isNullOrEmpty(indexHeader)) {
+            responseHeaderNames.put(AbTestActionListener.HEADER_INDEX, indexHeader);
+        }
     }
 
     @Override
     public void process(final RestRequest request, final RestChannel channel, final RestFilterChain restFilterChain) throws Exception {
-        request.params().entrySet().iterator()
-            .forEachRemaining(entry -> request.putInContext(entry.getKey(), entry.getValue()));
+        if (isSearchPath(request.rawPath())) {
+            for (final String param : params) {
+                final String value = request.param(param);
+                if (value != null) {
+                    request.putInContext(param, value);
+                }
+            }
+            putTargetingValues(request);
+            if (request.param(PARAM_RT) == null) {
+                final String rt = getRtFromHeader(request);
+                if (rt != null) {
+                    request.putInContext(PARAM_RT, rt);
+                }
+            }
+            if (!responseHeaderNames.isEmpty() && request.getFromContext(PARAM_RT) != null) {
+                final Map<String, String> responseHeaders = new ConcurrentHashMap<>(4);
+                request.putInContext(AbTestSearchActionFilter.CONTEXT_RESPONSE_HEADERS, responseHeaders);
+                restFilterChain.continueProcessing(request,
+                    new ResponseHeaderRestChannel(channel, responseHeaderNames, responseHeaders));
+                return;
+            }
+        }
         restFilterChain.continueProcessing(request, channel);
     }
+
+    protected void putTargetingValues(final RestRequest request) {
+        if (targetingPrefix != null) {
+            for (final Map.Entry<String, String> entry : request.params().entrySet()) {
+                if (entry.getKey().startsWith(targetingPrefix)) {
+                    request.putInContext(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        for (final String header : targetingHeaders) {
+            final String value = request.header(header);
+            if (!Strings.isNullOrEmpty(value)) {
+                request.putInContext(header, value);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the path is of a search request, ignoring trailing slashes such as "/_search/".
+     */
+    protected boolean isSearchPath(final String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        for (final String suffix : SEARCH_PATH_SUFFIXES) {
+            if (path.startsWith(suffix, end - suffix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected String getRtFromHeader(final RestRequest request) {
+        if (rtHeader != null) {
+            final String value = request.header(rtHeader);
+            if (!Strings.isNullOrEmpty(value)) {
+                return value;
+            }
+        }
+        if (rtCookie != null) {
+            return getCookie(request.header("Cookie"), rtCookie);
+        }
+        return null;
+    }
+
+    protected static String getCookie(final String cookieHeader, final String name) {
+        if (Strings.isNullOrEmpty(cookieHeader)) {
+            return null;
+        }
+        int pos = 0;
+        final int length = cookieHeader.length();
+        while (pos < length) {
+            while (pos < length && (cookieHeader.charAt(pos) == ' ' || cookieHeader.charAt(pos) == ';')) {
+                pos++;
+            }
+            int end = cookieHeader.indexOf(';', pos);
+            if (end < 0) {
+                end = length;
+            }
+            final int eq = cookieHeader.indexOf('=', pos);
+            if (0 <= eq && eq < end && eq - pos == name.length() && cookieHeader.regionMatches(pos, name, 0, name.length())) {
+                final String value = cookieHeader.substring(eq + 1, end).trim();
+                return value.isEmpty() ? null : value;
+            }
+            pos = end + 1;
+        }
+        return null;
+    }
 }
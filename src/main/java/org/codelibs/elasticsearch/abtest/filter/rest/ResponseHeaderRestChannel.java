@@ -0,0 +1,38 @@
+package org.codelibs.elasticsearch.abtest.filter.rest;
+
+import java.util.Map;
+
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestResponse;
+
+/**
+ * Adds headers which are set while the request is processed to the REST response.
+ * Builders are created by RestChannel for the same request, so only sending is delegated.
+ */
+public class ResponseHeaderRestChannel extends RestChannel {
+    protected final RestChannel channel;
+
+    // key in responseHeaders -> HTTP header name
+    protected final Map<String, String> headerNames;
+
+    protected final Map<String, String> responseHeaders;
+
+    public ResponseHeaderRestChannel(final RestChannel channel, final Map<String, String> headerNames,
+            final Map<String, String> responseHeaders) {
+        super(channel.request(), channel.detailedErrorsEnabled());
+        this.channel = channel;
+        this.headerNames = headerNames;
+        this.responseHeaders = responseHeaders;
+    }
+
+    @Override
+    public void sendResponse(final RestResponse response) {
+        for (final Map.Entry<String, String> entry : responseHeaders.entrySet()) {
+            final String name = headerNames.get(entry.getKey());
+            if (name != null) {
+                response.addHeader(name, entry.getValue());
+            }
+        }
+        channel.sendResponse(response);
+    }
+}
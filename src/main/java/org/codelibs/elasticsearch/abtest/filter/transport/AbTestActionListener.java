@@ -0,0 +1,98 @@
+package org.codelibs.elasticsearch.abtest.filter.transport;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.codelibs.elasticsearch.abtest.service.Variant;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchResponse;
+
+/**
+ * Listener of a request routed by test sweets.
+ * A response is recorded and tagged with its variants by the response-side hook of AbTestSearchActionFilter,
+ * and a failure is recorded by this listener.
+ * Requests without any variant are not wrapped, so they pay nothing.
+ */
+public abstract class AbTestActionListener<Response extends ActionResponse> implements ActionListener<Response> {
+    public static final String HEADER_VARIANT = "abtest.variant";
+
+    public static final String HEADER_INDEX = "abtest.index";
+
+    protected final ActionListener<Response> listener;
+
+    // headers of the REST response, null if the request is not from REST
+    protected final Map<String, String> responseHeaders;
+
+    // clock of circuit breakers, which they are selected by too
+    protected final LongSupplier clock;
+
+    protected AbTestActionListener(final ActionListener<Response> listener, final Map<String, String> responseHeaders,
+            final LongSupplier clock) {
+        this.listener = listener;
+        this.responseHeaders = responseHeaders;
+        this.clock = clock;
+    }
+
+    /**
+     * Records the response into metrics of its variants and tags it with them.
+     */
+    public abstract void onServed(Response response);
+
+    @Override
+    public void onResponse(final Response response) {
+        listener.onResponse(response);
+    }
+
+    protected void tag(final Response response, final String variants, final String indices) {
+        response.putHeader(HEADER_VARIANT, variants);
+        response.putHeader(HEADER_INDEX, indices);
+        if (responseHeaders != null) {
+            responseHeaders.put(HEADER_VARIANT, variants);
+            responseHeaders.put(HEADER_INDEX, indices);
+        }
+    }
+
+    protected static void appendVariants(final StringBuilder buf, final List<Variant> variants) {
+        for (int i = 0; i < variants.size(); i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(variants.get(i).testSweetName).append('/').append(variants.get(i).testName);
+        }
+    }
+
+    protected static void appendIndices(final StringBuilder buf, final String[] indices) {
+        for (int i = 0; i < indices.length; i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(indices[i]);
+        }
+    }
+
+    protected void record(final List<Variant> variants, final SearchResponse response) {
+        final long took = response.getTookInMillis();
+        final long totalHits = response.getHits().getTotalHits();
+        for (final Variant variant : variants) {
+            if (variant.metric != null) {
+                variant.metric.onResponse(took, totalHits);
+            }
+            if (variant.breaker != null) {
+                variant.breaker.onResponse(clock.getAsLong(), took, variant.probe);
+            }
+        }
+    }
+
+    protected void recordFailure(final List<Variant> variants) {
+        for (final Variant variant : variants) {
+            if (variant.metric != null) {
+                variant.metric.onFailure();
+            }
+            if (variant.breaker != null) {
+                variant.breaker.onFailure(clock.getAsLong(), variant.probe);
+            }
+        }
+    }
+}
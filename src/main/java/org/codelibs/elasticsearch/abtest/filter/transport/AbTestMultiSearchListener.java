@@ -0,0 +1,72 @@
+package org.codelibs.elasticsearch.abtest.filter.transport;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.codelibs.elasticsearch.abtest.service.Variant;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+
+/**
+ * Listener of a multi search request whose sub requests are routed to variants.
+ * Items are recorded into metrics of the variants of their sub requests.
+ * The response is tagged with the variants and indices of each item in order, separated by ';',
+ * and an item which is not routed has an empty slot, e.g. "sample/test1;;other/test2".
+ */
+public class AbTestMultiSearchListener extends AbTestActionListener<MultiSearchResponse> {
+    public static final char ITEM_SEPARATOR = ';';
+
+    // variants of each sub request, null if it is not routed
+    protected final List<List<Variant>> variants;
+
+    protected final List<SearchRequest> searchRequests;
+
+    public AbTestMultiSearchListener(final ActionListener<MultiSearchResponse> listener,
+            final List<List<Variant>> variants, final List<SearchRequest> searchRequests,
+            final Map<String, String> responseHeaders, final LongSupplier clock) {
+        super(listener, responseHeaders, clock);
+        this.variants = variants;
+        this.searchRequests = searchRequests;
+    }
+
+    public List<List<Variant>> variants() {
+        return variants;
+    }
+
+    @Override
+    public void onServed(final MultiSearchResponse response) {
+        final MultiSearchResponse.Item[] items = response.getResponses();
+        final StringBuilder variantBuf = new StringBuilder();
+        final StringBuilder indexBuf = new StringBuilder();
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0) {
+                variantBuf.append(ITEM_SEPARATOR);
+                indexBuf.append(ITEM_SEPARATOR);
+            }
+            final List<Variant> itemVariants = i < variants.size() ? variants.get(i) : null;
+            if (itemVariants == null) {
+                continue;
+            }
+            if (items[i].isFailure()) {
+                recordFailure(itemVariants);
+            } else {
+                record(itemVariants, items[i].getResponse());
+            }
+            appendVariants(variantBuf, itemVariants);
+            appendIndices(indexBuf, searchRequests.get(i).indices());
+        }
+        tag(response, variantBuf.toString(), indexBuf.toString());
+    }
+
+    @Override
+    public void onFailure(final Throwable e) {
+        for (final List<Variant> itemVariants : variants) {
+            if (itemVariants != null) {
+                recordFailure(itemVariants);
+            }
+        }
+        listener.onFailure(e);
+    }
+}
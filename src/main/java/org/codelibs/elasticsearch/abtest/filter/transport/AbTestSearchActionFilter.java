@@ -1,29 +1,78 @@
 package org.codelibs.elasticsearch.abtest.filter.transport;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+import org.codelibs.elasticsearch.abtest.event.ImpressionLog;
+import org.codelibs.elasticsearch.abtest.filter.rest.PutParamToContextRestFilter;
 import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+import org.codelibs.elasticsearch.abtest.service.BucketHash;
+import org.codelibs.elasticsearch.abtest.service.InterleavedSearch;
+import org.codelibs.elasticsearch.abtest.service.ShadowTraffic;
+import org.codelibs.elasticsearch.abtest.service.Variant;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.MultiSearchAction;
+import org.elasticsearch.action.search.MultiSearchRequest;
 import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.ActionFilter;
 import org.elasticsearch.action.support.ActionFilterChain;
 import org.elasticsearch.common.base.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 
 public class AbTestSearchActionFilter extends AbstractComponent implements ActionFilter {
-    private static final String PARAM_RT = "ab_rt";
-    private static final String PARAM_HASH_RT = "hash_rt";
-    private static final String PARAM_TESTSWEET = "testsweet";
+    private static final String PARAM_RT = PutParamToContextRestFilter.PARAM_RT;
+    private static final String PARAM_HASH_RT = PutParamToContextRestFilter.PARAM_HASH_RT;
+    private static final String PARAM_TESTSWEET = PutParamToContextRestFilter.PARAM_TESTSWEET;
     private static final String HEADER_INVOKED_KEY = "AbTestSearchActionFilter.invoked";
 
+    // map of headers which are added to the REST response, put by PutParamToContextRestFilter
+    public static final String CONTEXT_RESPONSE_HEADERS = "AbTestSearchActionFilter.responseHeaders";
+
+    public static final String SETTING_STICKY_PREFERENCE = "abtest.preference.sticky";
+    public static final String SETTING_PREFERENCE_GROUPS = "abtest.preference.groups";
+
+    private static final String PREFERENCE_PREFIX = "abtest";
+
+    // seed of the group hash, independent of the bucket hash, so the users of an arm are spread over all groups
+    private static final int PREFERENCE_SEED = 0x7f4a7c15;
+
+    private static final int DEFAULT_PREFERENCE_GROUPS = 4;
+
     protected AbTestService service = null;
 
+    // clock of circuit breakers, the one which the service selects variants by
+    protected LongSupplier clock = null;
+
+    protected ImpressionLog impressionLog = null;
+
+    protected InterleavedSearch interleavedSearch = null;
+
+    protected ShadowTraffic shadowTraffic = null;
+
+    // routed requests of an arm are sent to the same shard copies
+    protected final boolean stickyPreference;
+
+    // number of shard copy groups which ab_rt buckets of an arm are spread over
+    protected final int preferenceGroups;
+
     @Inject
     public AbTestSearchActionFilter(final Settings settings) {
         super(settings);
+        stickyPreference = settings.getAsBoolean(SETTING_STICKY_PREFERENCE, false);
+        preferenceGroups = Math.max(1, settings.getAsInt(SETTING_PREFERENCE_GROUPS, DEFAULT_PREFERENCE_GROUPS));
     }
 
     @Override
@@ -33,6 +82,10 @@ public class AbTestSearchActionFilter extends AbstractComponent implements Actio
 
     @Override
     public void apply(final String action, final ActionRequest request, final ActionListener listener, final ActionFilterChain chain) {
+        if(MultiSearchAction.INSTANCE.name().equals(action)) {
+            applyMultiSearch(action, (MultiSearchRequest) request, listener, chain);
+            return;
+        }
         if(!SearchAction.INSTANCE.name().equals(action)) {
             chain.proceed(action, request, listener);
             return;
@@ -44,47 +97,341 @@ public class AbTestSearchActionFilter extends AbstractComponent implements Actio
             chain.proceed(action, request, listener);
             return;
         }
-        searchRequest.putHeader(HEADER_INVOKED_KEY, true);
 
         final String rt = searchRequest.getFromContext(PARAM_RT);
         if(Strings.isNullOrEmpty(rt)) {
             chain.proceed(action, request, listener);
             return;
         }
+        if(!service.isReady()) {
+            // held briefly while test sweets are preloaded, and then routed by the tables loaded so far
+            service.whenReady(() -> applySearch(action, searchRequest, rt, listener, chain));
+            return;
+        }
+        applySearch(action, searchRequest, rt, listener, chain);
+    }
+
+    protected void applySearch(final String action, final SearchRequest searchRequest, final String rt,
+                               final ActionListener listener, final ActionFilterChain chain) {
+        searchRequest.putHeader(HEADER_INVOKED_KEY, true);
 
         final String hash_rt = searchRequest.getFromContext(PARAM_HASH_RT);
         final boolean doHash = hash_rt == null || Boolean.parseBoolean(hash_rt);
-        final String testCaseKey;
-        if(doHash) {
-            testCaseKey = service.convertTestCaseKey(rt);
-        } else {
-            testCaseKey = rt;
-        }
-
-        String testSweetName = searchRequest.getFromContext(PARAM_TESTSWEET);
-        if(Strings.isNullOrEmpty(testSweetName)) {
-            if (searchRequest.indices().length != 1) {
-                //TODO?
-                chain.proceed(action, request, listener);
+
+        final String testSweetName = searchRequest.getFromContext(PARAM_TESTSWEET);
+        if(!Strings.isNullOrEmpty(testSweetName)) {
+            final List<Variant> resolvedVariants = service.resolveVariants(testSweetName, rt, doHash, searchRequest, null);
+            if(resolvedVariants != null) {
+                proceed(action, searchRequest, rt, testSweetName, resolvedVariants, listener, chain);
                 return;
             }
-            testSweetName = searchRequest.indices()[0];
+
+            service.rewriteIndex(testSweetName, rt, doHash, searchRequest, null,
+                variants -> proceed(action, searchRequest, rt, testSweetName, variants, listener, chain));
+            return;
         }
 
-        service.rewriteIndex(testSweetName, testCaseKey,
-            rewritedIndex -> {
-                searchRequest.indices(rewritedIndex);
-                chain.proceed(action, searchRequest, listener);
+        final String[] indices = searchRequest.indices();
+        if(indices == null || indices.length == 0) {
+            chain.proceed(action, searchRequest, listener);
+            return;
+        }
+
+        // indices are rewritten in place
+        final String originalIndex = indices.length == 1 ? indices[0] : null;
+        final List<Variant> variants = new ArrayList<>(1);
+        final String[] resolvedIndices =
+            service.resolveIndices(indices, searchRequest.indicesOptions(), rt, doHash, searchRequest, null, variants);
+        if(resolvedIndices != null) {
+            if(resolvedIndices != indices) {
+                searchRequest.indices(resolvedIndices);
+            }
+            proceedRouted(action, searchRequest, rt, resolvedIndices.length == 1 ? originalIndex : null, variants,
+                listener, chain);
+            return;
+        }
+
+        service.rewriteIndices(indices, searchRequest.indicesOptions(), rt, doHash, searchRequest, null, variants,
+            rewritedIndices -> {
+                if(rewritedIndices != indices) {
+                    searchRequest.indices(rewritedIndices);
+                }
+                proceedRouted(action, searchRequest, rt, rewritedIndices.length == 1 ? originalIndex : null, variants,
+                    listener, chain);
             });
     }
 
+    protected void proceed(final String action, final SearchRequest searchRequest, final String rt,
+                           final String testSweetName, final List<Variant> variants, final ActionListener listener,
+                           final ActionFilterChain chain) {
+        searchRequest.indices(Variant.index(variants, 0, testSweetName));
+        proceedRouted(action, searchRequest, rt, testSweetName, variants, listener, chain);
+    }
+
+    /**
+     * Proceeds a search request whose indices are rewritten.
+     * A request to one index routed to an interleave test case searches the original
+     * and the test indices in parallel instead, and one routed to a shadow test case
+     * is also copied to the test index. Variants of layers follow the one of the test sweet.
+     *
+     * @param originalIndex the index before rewriting, or null if the request has several indices
+     */
+    @SuppressWarnings("unchecked")
+    protected void proceedRouted(final String action, final SearchRequest searchRequest, final String rt,
+                                 final String originalIndex, final List<Variant> variants,
+                                 final ActionListener listener, final ActionFilterChain chain) {
+        applyPreference(searchRequest, rt, variants);
+        if(originalIndex != null && !variants.isEmpty() && variants.get(0).isType(TestCase.TYPE_INTERLEAVE)) {
+            final String candidateIndex = variants.get(0).testCase.testIndexName;
+            // parameters of layers apply to both teams
+            applyOverlays(searchRequest, variants.subList(1, variants.size()));
+            searchRequest.indices(originalIndex, candidateIndex);
+            final ActionListener wrapped = wrapListener(searchRequest, rt, listener, variants);
+            interleavedSearch.execute(searchRequest, originalIndex, candidateIndex, variants.get(0).testCase.overlay, rt,
+                new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(final SearchResponse response) {
+                        // the merged response does not pass the response-side hook
+                        ((AbTestActionListener) wrapped).onServed(response);
+                        wrapped.onResponse(response);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        wrapped.onFailure(e);
+                    }
+                });
+            return;
+        }
+        applyOverlays(searchRequest, variants);
+        if(originalIndex != null && !variants.isEmpty() && variants.get(0).isType(TestCase.TYPE_SHADOW)) {
+            shadowTraffic.send(searchRequest, variants.get(0));
+        }
+        chain.proceed(action, searchRequest, wrapListener(searchRequest, rt, listener, variants));
+    }
+
+    /**
+     * Sets a preference derived from the test sweet, the test cases and the ab_rt group if sticky preference is enabled,
+     * so that searches of an arm hit the same shard copies and keep their caches warm.
+     * An arm of a test sweet with layers is the combination of the test cases of all layers.
+     * Requests served by default variants only keep the normal balancing over shard copies.
+     * A preference of the request, or of the test case parameters, takes precedence.
+     */
+    protected void applyPreference(final SearchRequest searchRequest, final String rt, final List<Variant> variants) {
+        if(!stickyPreference || variants.isEmpty() || searchRequest.preference() != null) {
+            return;
+        }
+        final Variant variant = variants.get(0);
+        boolean routed = !variant.isDefault();
+        String testName = variant.testName;
+        for(int i = 1; i < variants.size(); i++) {
+            if(!variant.testSweetName.equals(variants.get(i).testSweetName)) {
+                // several test sweets
+                return;
+            }
+            routed |= !variants.get(i).isDefault();
+            testName = testName + '+' + variants.get(i).testName;
+        }
+        if(!routed) {
+            return;
+        }
+        searchRequest.preference(stickyPreference(variant.testSweetName, testName, rt, preferenceGroups));
+    }
+
+    /**
+     * Returns a custom preference string, which does not start with '_' so that shard copies are chosen by its hash.
+     * The group is hashed with its own seed, so it does not depend on the bucket of ab_rt.
+     */
+    public static String stickyPreference(final String testSweetName, final String testName, final String rt,
+                                          final int groups) {
+        final int group = groups > 1 ? BucketHash.bucket(rt, PREFERENCE_SEED, groups) : 0;
+        return PREFERENCE_PREFIX + ':' + testSweetName + ':' + testName + ':' + group;
+    }
+
+    /**
+     * Applies search parameters of routed test cases to the request.
+     * Those of shadow test cases, and of interleave test cases for one index, are applied to their own copies.
+     * Variants are applied in reverse order, so a parameter of the test sweet wins over its layers
+     * and one of a layer wins over the following layers.
+     */
+    protected static void applyOverlays(final SearchRequest searchRequest, final List<Variant> variants) {
+        for(int i = variants.size() - 1; i >= 0; i--) {
+            final Variant variant = variants.get(i);
+            if(variant.testCase != null && variant.testCase.overlay != null && !variant.isType(TestCase.TYPE_SHADOW)) {
+                variant.testCase.overlay.apply(searchRequest);
+            }
+        }
+    }
+
+    /**
+     * Wraps the listener to record and tag the response with the variants.
+     */
+    @SuppressWarnings("unchecked")
+    protected ActionListener wrapListener(final SearchRequest searchRequest, final String rt,
+                                          final ActionListener listener, final List<Variant> variants) {
+        if(variants.isEmpty()) {
+            return listener;
+        }
+        logImpressions(searchRequest, rt, variants);
+        final Map<String, String> responseHeaders = searchRequest.getFromContext(CONTEXT_RESPONSE_HEADERS);
+        return new AbTestSearchListener(listener, variants, searchRequest.indices(), responseHeaders, clock);
+    }
+
+    /**
+     * Rewrites indices of all sub requests after loading their routing tables in one batch.
+     * Sub requests are marked as invoked, so they are not resolved again one by one.
+     */
+    protected void applyMultiSearch(final String action, final MultiSearchRequest multiSearchRequest,
+                                    final ActionListener listener, final ActionFilterChain chain) {
+        if(multiSearchRequest.getHeader(HEADER_INVOKED_KEY) != null) {
+            chain.proceed(action, multiSearchRequest, listener);
+            return;
+        }
+        if(!service.isReady()) {
+            service.whenReady(() -> routeMultiSearch(action, multiSearchRequest, listener, chain));
+            return;
+        }
+        routeMultiSearch(action, multiSearchRequest, listener, chain);
+    }
+
+    protected void routeMultiSearch(final String action, final MultiSearchRequest multiSearchRequest,
+                                    final ActionListener listener, final ActionFilterChain chain) {
+        multiSearchRequest.putHeader(HEADER_INVOKED_KEY, true);
+
+        final List<SearchRequest> searchRequests = multiSearchRequest.requests();
+        List<SearchRequest> targetRequests = null;
+        Set<String> testSweetNames = null;
+        for(final SearchRequest searchRequest : searchRequests) {
+            searchRequest.putHeader(HEADER_INVOKED_KEY, true);
+            if(Strings.isNullOrEmpty(getParam(searchRequest, multiSearchRequest, PARAM_RT))) {
+                continue;
+            }
+            if(targetRequests == null) {
+                targetRequests = new ArrayList<>();
+                testSweetNames = new HashSet<>();
+            }
+            targetRequests.add(searchRequest);
+            final String testSweetName = getParam(searchRequest, multiSearchRequest, PARAM_TESTSWEET);
+            if(!Strings.isNullOrEmpty(testSweetName)) {
+                testSweetNames.add(testSweetName);
+            }
+        }
+        if(targetRequests == null) {
+            chain.proceed(action, multiSearchRequest, listener);
+            return;
+        }
+
+        final List<SearchRequest> requests = targetRequests;
+        service.loadRoutingTables(testSweetNames, requests, () -> {
+            List<List<Variant>> variants = null;
+            for(int i = 0; i < searchRequests.size(); i++) {
+                final SearchRequest searchRequest = searchRequests.get(i);
+                if(Strings.isNullOrEmpty(getParam(searchRequest, multiSearchRequest, PARAM_RT))) {
+                    continue;
+                }
+                final List<Variant> itemVariants = rewriteLoadedIndices(searchRequest, multiSearchRequest);
+                if(!itemVariants.isEmpty()) {
+                    applyPreference(searchRequest, getParam(searchRequest, multiSearchRequest, PARAM_RT), itemVariants);
+                    applyOverlays(searchRequest, itemVariants);
+                    logImpressions(searchRequest, getParam(searchRequest, multiSearchRequest, PARAM_RT), itemVariants);
+                    if(variants == null) {
+                        variants = new ArrayList<>(Collections.nCopies(searchRequests.size(), (List<Variant>) null));
+                    }
+                    variants.set(i, itemVariants);
+                }
+            }
+            if(variants == null) {
+                chain.proceed(action, multiSearchRequest, listener);
+                return;
+            }
+            final Map<String, String> responseHeaders = multiSearchRequest.getFromContext(CONTEXT_RESPONSE_HEADERS);
+            chain.proceed(action, multiSearchRequest,
+                new AbTestMultiSearchListener(listener, variants, searchRequests, responseHeaders, clock));
+        });
+    }
+
+    /**
+     * Rewrites indices of a sub request and returns its selected variants.
+     */
+    protected List<Variant> rewriteLoadedIndices(final SearchRequest searchRequest,
+                                                 final MultiSearchRequest multiSearchRequest) {
+        final String rt = getParam(searchRequest, multiSearchRequest, PARAM_RT);
+        final String hash_rt = getParam(searchRequest, multiSearchRequest, PARAM_HASH_RT);
+        final boolean doHash = hash_rt == null || Boolean.parseBoolean(hash_rt);
+
+        final String testSweetName = getParam(searchRequest, multiSearchRequest, PARAM_TESTSWEET);
+        if(!Strings.isNullOrEmpty(testSweetName)) {
+            final List<Variant> variants =
+                service.resolveVariants(testSweetName, rt, doHash, searchRequest, multiSearchRequest);
+            if(variants == null || variants.isEmpty()) {
+                searchRequest.indices(testSweetName);
+                return Collections.emptyList();
+            }
+            searchRequest.indices(Variant.index(variants, 0, testSweetName));
+            return variants;
+        }
+
+        final String[] indices = searchRequest.indices();
+        if(indices == null || indices.length == 0) {
+            return Collections.emptyList();
+        }
+        final List<Variant> variants = new ArrayList<>(1);
+        final String[] resolvedIndices =
+            service.resolveIndices(indices, searchRequest.indicesOptions(), rt, doHash, searchRequest,
+                multiSearchRequest, variants);
+        if(resolvedIndices != null && resolvedIndices != indices) {
+            searchRequest.indices(resolvedIndices);
+        }
+        return variants;
+    }
+
+    protected void logImpressions(final SearchRequest searchRequest, final String rt, final List<Variant> variants) {
+        if(impressionLog != null && impressionLog.isEnabled()) {
+            final BytesReference source =
+                searchRequest.source() != null ? searchRequest.source() : searchRequest.extraSource();
+            for(final Variant variant : variants) {
+                impressionLog.log(rt, variant, source);
+            }
+        }
+    }
+
+    /**
+     * Returns a parameter of a sub request, or of the multi search request if the sub request does not have it.
+     */
+    protected String getParam(final SearchRequest searchRequest, final MultiSearchRequest multiSearchRequest,
+                              final String key) {
+        final String value = searchRequest.getFromContext(key);
+        return value != null ? value : multiSearchRequest.getFromContext(key);
+    }
+
+    /**
+     * Records and tags responses of requests which are routed to variants.
+     * Other responses pass through untouched.
+     */
+    @SuppressWarnings("unchecked")
     @Override
     public void apply(String action, ActionResponse response, ActionListener listener, ActionFilterChain chain) {
+        if(listener instanceof AbTestActionListener) {
+            ((AbTestActionListener) listener).onServed(response);
+        }
         chain.proceed(action, response, listener);
     }
 
     public void injectService(final AbTestService service) {
         this.service = service;
+        this.clock = service::estimatedTimeInMillis;
+    }
+
+    public void injectImpressionLog(final ImpressionLog impressionLog) {
+        this.impressionLog = impressionLog;
+    }
+
+    public void injectInterleavedSearch(final InterleavedSearch interleavedSearch) {
+        this.interleavedSearch = interleavedSearch;
+    }
+
+    public void injectShadowTraffic(final ShadowTraffic shadowTraffic) {
+        this.shadowTraffic = shadowTraffic;
     }
 
 }
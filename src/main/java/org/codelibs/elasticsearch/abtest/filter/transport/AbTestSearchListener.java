@@ -0,0 +1,46 @@
+package org.codelibs.elasticsearch.abtest.filter.transport;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.codelibs.elasticsearch.abtest.service.Variant;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+
+/**
+ * Listener of a search request routed to variants.
+ */
+public class AbTestSearchListener extends AbTestActionListener<SearchResponse> {
+    protected final List<Variant> variants;
+
+    // indices after rewriting
+    protected final String[] indices;
+
+    public AbTestSearchListener(final ActionListener<SearchResponse> listener, final List<Variant> variants,
+            final String[] indices, final Map<String, String> responseHeaders, final LongSupplier clock) {
+        super(listener, responseHeaders, clock);
+        this.variants = variants;
+        this.indices = indices;
+    }
+
+    public List<Variant> variants() {
+        return variants;
+    }
+
+    @Override
+    public void onServed(final SearchResponse response) {
+        record(variants, response);
+        final StringBuilder variantBuf = new StringBuilder();
+        appendVariants(variantBuf, variants);
+        final StringBuilder indexBuf = new StringBuilder();
+        appendIndices(indexBuf, indices);
+        tag(response, variantBuf.toString(), indexBuf.toString());
+    }
+
+    @Override
+    public void onFailure(final Throwable e) {
+        recordFailure(variants);
+        listener.onFailure(e);
+    }
+}
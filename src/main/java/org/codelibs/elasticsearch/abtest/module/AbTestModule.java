@@ -1,12 +1,24 @@
 package org.codelibs.elasticsearch.abtest.module;
 
+import org.codelibs.elasticsearch.abtest.event.ImpressionLog;
 import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.codelibs.elasticsearch.abtest.service.BanditAllocator;
+import org.codelibs.elasticsearch.abtest.service.IndexWarmer;
+import org.codelibs.elasticsearch.abtest.service.InterleavedSearch;
+import org.codelibs.elasticsearch.abtest.service.ShadowTraffic;
+import org.codelibs.elasticsearch.abtest.stats.AbTestStats;
 import org.elasticsearch.common.inject.AbstractModule;
 
 public class AbTestModule extends AbstractModule {
 
     @Override
     protected void configure() {
+        bind(AbTestStats.class).asEagerSingleton();
+        bind(IndexWarmer.class).asEagerSingleton();
         bind(AbTestService.class).asEagerSingleton();
+        bind(InterleavedSearch.class).asEagerSingleton();
+        bind(ShadowTraffic.class).asEagerSingleton();
+        bind(ImpressionLog.class).asEagerSingleton();
+        bind(BanditAllocator.class).asEagerSingleton();
     }
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package org.codelibs.elasticsearch.abtest.rest;
+
+import static org.elasticsearch.rest.RestStatus.OK;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.abtest.exception.AbTestException;
+import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Updates and deletes many test sweets in one write.
+ * The body is {"update": {"{index}": {test sweet settings}, ...}, "delete": ["{index}", ...]}.
+ */
+public class AbTestBulkSettingsRestAction extends BaseRestHandler {
+    private static final String UPDATE = "update";
+    private static final String DELETE = "delete";
+
+    protected final AbTestService service;
+
+    @Inject
+    public AbTestBulkSettingsRestAction(final Settings settings, final Client client,
+                                        final RestController controller, final AbTestService abTestService) {
+        super(settings, controller, client);
+
+        controller.registerHandler(RestRequest.Method.POST,
+            "/_abtest/settings/_bulk", this);
+
+        this.service = abTestService;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void handleRequest(final RestRequest request,
+            final RestChannel channel, Client client) {
+        try {
+            final Map<String, Object> content = JsonXContent.jsonXContent.createParser(request.content()).mapAndClose();
+            final Object updateObj = content.get(UPDATE);
+            final Object deleteObj = content.get(DELETE);
+            if(updateObj != null && !(updateObj instanceof Map) || deleteObj != null && !(deleteObj instanceof List)) {
+                throw new AbTestException("update must be an object and delete must be an array.");
+            }
+            final Map<String, Map<String, Object>> updates =
+                updateObj != null ? (Map<String, Map<String, Object>>) updateObj : Collections.emptyMap();
+            final List<String> deletes = deleteObj != null ? (List<String>) deleteObj : Collections.emptyList();
+            service.updateTestSweets(updates, deletes,
+                acknowledge -> {
+                    try {
+                        final XContentBuilder builder = JsonXContent.contentBuilder();
+                        builder.startObject();
+                        builder.field("acknowledge", acknowledge);
+                        builder.field("updated", updates.size());
+                        builder.field("deleted", deletes.size());
+                        builder.endObject();
+                        channel.sendResponse(new BytesRestResponse(OK, builder));
+                    } catch (IOException e) {
+                        sendErrorResponse(channel, e);
+                    }
+                },
+                t -> sendErrorResponse(channel, t));
+        } catch (final Exception e) {
+            sendErrorResponse(channel, e);
+        }
+    }
+
+    protected void sendErrorResponse(final RestChannel channel, final Throwable t) {
+        try {
+            logger.error(t.getMessage(), t);
+            channel.sendResponse(new BytesRestResponse(channel, t));
+        } catch(IOException e) {
+            logger.error("Failed to send a failure response.", e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.codelibs.elasticsearch.abtest.rest;
+
+import static org.elasticsearch.rest.RestStatus.OK;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codelibs.elasticsearch.abtest.exception.AbTestException;
+import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.codelibs.elasticsearch.abtest.stats.AbTestStats;
+import org.codelibs.elasticsearch.abtest.stats.TestCaseMetric;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Records a batch of reward events, such as clicks and conversions, of test cases.
+ * Rewards are added to the metrics of this node and read by the bandit allocation through the stats.
+ */
+public class AbTestFeedbackRestAction extends BaseRestHandler {
+    private static final String EVENTS = "events";
+    private static final String TEST_SWEET = "testsweet";
+    private static final String TEST_NAME = "test_name";
+    private static final String VALUE = "value";
+
+    protected final AbTestService service;
+
+    protected final AbTestStats stats;
+
+    @Inject
+    public AbTestFeedbackRestAction(final Settings settings, final Client client,
+                                    final RestController controller, final AbTestService abTestService,
+                                    final AbTestStats stats) {
+        super(settings, controller, client);
+
+        controller.registerHandler(RestRequest.Method.POST,
+            "/_abtest/feedback", this);
+
+        this.service = abTestService;
+        this.stats = stats;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void handleRequest(final RestRequest request,
+            final RestChannel channel, Client client) {
+        try {
+            final Map<String, Object> content = JsonXContent.jsonXContent.createParser(request.content()).mapAndClose();
+            final Object eventsObj = content.get(EVENTS);
+            if (!(eventsObj instanceof List)) {
+                throw new AbTestException("events was null.");
+            }
+            final List<Map<String, Object>> events = new ArrayList<>((List<Map<String, Object>>) eventsObj);
+            final Set<String> testSweetNames = new LinkedHashSet<>();
+            for (final Map<String, Object> event : events) {
+                final Object testSweet = event.get(TEST_SWEET);
+                if (testSweet != null) {
+                    testSweetNames.add(service.normalizeTestSweetName(testSweet.toString()));
+                }
+            }
+
+            // metrics exist once routing tables are loaded
+            service.loadRoutingTables(testSweetNames, Collections.emptyList(), () -> {
+                int accepted = 0;
+                for (final Map<String, Object> event : events) {
+                    final Object testSweet = event.get(TEST_SWEET);
+                    final Object testName = event.get(TEST_NAME);
+                    if (testSweet == null || testName == null) {
+                        continue;
+                    }
+                    final TestCaseMetric metric =
+                        stats.existingMetric(service.normalizeTestSweetName(testSweet.toString()), testName.toString());
+                    if (metric != null) {
+                        final Object value = event.get(VALUE);
+                        metric.onReward(value != null ? Long.parseLong(value.toString()) : 1L);
+                        accepted++;
+                    }
+                }
+                sendResponse(channel, accepted, events.size() - accepted);
+            });
+        } catch (final Exception e) {
+            sendErrorResponse(channel, e);
+        }
+    }
+
+    protected void sendResponse(final RestChannel channel, final int accepted, final int ignored) {
+        try {
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder.startObject();
+            builder.field("accepted", accepted);
+            builder.field("ignored", ignored);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (IOException e) {
+            sendErrorResponse(channel, e);
+        }
+    }
+
+    protected void sendErrorResponse(final RestChannel channel, final Throwable t) {
+        try {
+            logger.error(t.getMessage(), t);
+            channel.sendResponse(new BytesRestResponse(channel, t));
+        } catch(IOException e) {
+            logger.error("Failed to send a failure response.", e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.codelibs.elasticsearch.abtest.rest;
+
+import static org.elasticsearch.rest.RestStatus.OK;
+
+import java.io.IOException;
+
+import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+
+public class AbTestMigrateRestAction extends BaseRestHandler {
+
+    protected final AbTestService service;
+
+    @Inject
+    public AbTestMigrateRestAction(final Settings settings, final Client client,
+                                   final RestController controller, final AbTestService abTestService) {
+        super(settings, controller, client);
+
+        controller.registerHandler(RestRequest.Method.POST,
+            "/_abtest/settings/_migrate", this);
+
+        this.service = abTestService;
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request,
+            final RestChannel channel, Client client) {
+        service.migrateTestSweets(
+            count -> {
+                try {
+                    final XContentBuilder builder = JsonXContent.contentBuilder();
+                    builder.startObject();
+                    builder.field("migrated", count);
+                    builder.field("acknowledge", true);
+                    builder.endObject();
+                    channel.sendResponse(new BytesRestResponse(OK, builder));
+                } catch (IOException e) {
+                    sendErrorResponse(channel, e);
+                }
+            },
+            t -> sendErrorResponse(channel, t));
+    }
+
+    protected void sendErrorResponse(final RestChannel channel, final Throwable t) {
+        try {
+            logger.error(t.getMessage(), t);
+            channel.sendResponse(new BytesRestResponse(channel, t));
+        } catch(IOException e) {
+            logger.error("Failed to send a failure response.", e);
+        }
+    }
+}
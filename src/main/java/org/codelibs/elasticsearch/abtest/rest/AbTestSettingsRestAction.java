@@ -8,6 +8,7 @@ import java.util.Map;
 
 import org.codelibs.elasticsearch.abtest.exception.AbTestException;
 import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.codelibs.elasticsearch.abtest.service.TestSweet;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
@@ -38,6 +39,8 @@ public class AbTestSettingsRestAction extends BaseRestHandler {
             "/{index}/_abtest/settings", this);
         controller.registerHandler(RestRequest.Method.GET,
             "/{index}/_abtest/settings", this);
+        controller.registerHandler(RestRequest.Method.GET,
+            "/_abtest/settings", this);
 
         this.service = abTestService;
     }
@@ -53,22 +56,15 @@ public class AbTestSettingsRestAction extends BaseRestHandler {
 
             switch(request.method()) {
                 case GET:
+                    if(testSweetname == null) {
+                        sendListResponse(channel);
+                        break;
+                    }
                     service.getTestSweet(testSweetname,
-                        testCases -> {
+                        testSweet -> {
                             try {
                                 final XContentBuilder builder = JsonXContent.contentBuilder();
-                                builder.startObject();
-                                builder.field("testsweet", testSweetname);
-                                builder.startArray("testcases");
-                                for (final AbTestService.TestCase testCase : testCases) {
-                                    builder.startObject();
-                                    builder.field(AbTestService.TestCase.FIELD_TEST_NAME, testCase.testName);
-                                    builder.field(AbTestService.TestCase.FIELD_TEST_INDEX, testCase.testIndexName);
-                                    builder.field(AbTestService.TestCase.FIELD_PERCENTAGE, testCase.percentage);
-                                    builder.endObject();
-                                }
-                                builder.endArray();
-                                builder.endObject();
+                                toXContent(builder, testSweetname, testSweet);
                                 channel.sendResponse(new BytesRestResponse(OK, builder));
                             } catch(IOException e) {
                                 sendErrorResponse(channel, e);
@@ -78,11 +74,8 @@ public class AbTestSettingsRestAction extends BaseRestHandler {
                     break;
                 case POST:
                 case PUT:
-                    final Object testCasesObj = content.get(TEST_CASES);
-                    if(testCasesObj != null) {
-                        @SuppressWarnings("unchecked")
-                        final List<Map<String, Object>> testCases = (List) testCasesObj;
-                        service.updateTestSweet(testSweetname, testCases,
+                    if(content.get(TEST_CASES) != null) {
+                        service.updateTestSweet(testSweetname, content,
                             acknowledge -> sendAcknowledgeResponse(channel, testSweetname, acknowledge),
                             t -> sendErrorResponse(channel, t));
                     } else {
@@ -103,6 +96,97 @@ public class AbTestSettingsRestAction extends BaseRestHandler {
         }
     }
 
+    /**
+     * Sends all test sweets, which are written into the response one by one as they are read.
+     */
+    protected void sendListResponse(final RestChannel channel) throws IOException {
+        final XContentBuilder builder = JsonXContent.contentBuilder();
+        builder.startObject();
+        builder.startArray("testsweets");
+        final int[] total = new int[1];
+        service.scanTestSweets(testSweet -> {
+                try {
+                    toXContent(builder, testSweet.name, testSweet);
+                    total[0]++;
+                } catch(IOException e) {
+                    throw new AbTestException("Failed to write " + testSweet.name + ".", e);
+                }
+            },
+            () -> {
+                try {
+                    builder.endArray();
+                    builder.field("total", total[0]);
+                    builder.endObject();
+                    channel.sendResponse(new BytesRestResponse(OK, builder));
+                } catch(IOException e) {
+                    sendErrorResponse(channel, e);
+                }
+            },
+            t -> sendErrorResponse(channel, t));
+    }
+
+    protected void toXContent(final XContentBuilder builder, final String testSweetName, final TestSweet testSweet)
+            throws IOException {
+        builder.startObject();
+        builder.field("testsweet", testSweetName);
+        builder.field(TestSweet.FIELD_BUCKETS, testSweet.buckets);
+        builder.field(TestSweet.FIELD_SALT, testSweet.salt);
+        builder.field(TestSweet.FIELD_ALLOCATION, testSweet.allocation);
+        builder.field(TestSweet.FIELD_VERSION, testSweet.version);
+        builder.startArray(TestSweet.FIELD_HISTORY);
+        for (final TestSweet previous : testSweet.history) {
+            builder.value(previous.version);
+        }
+        builder.endArray();
+        testCasesToXContent(builder, testSweet.testCases);
+        if (!testSweet.layers.isEmpty()) {
+            builder.startArray(TestSweet.FIELD_LAYERS);
+            for (final TestSweet layer : testSweet.layers) {
+                builder.startObject();
+                builder.field(TestSweet.FIELD_NAME, layer.name);
+                builder.field(TestSweet.FIELD_BUCKETS, layer.buckets);
+                builder.field(TestSweet.FIELD_SALT, layer.salt);
+                testCasesToXContent(builder, layer.testCases);
+                builder.endObject();
+            }
+            builder.endArray();
+        }
+        if (!testSweet.warmUpQueries.isEmpty()) {
+            builder.field(TestSweet.FIELD_WARMUP, testSweet.warmUpQueries);
+        }
+        if (!testSweet.targeting.isEmpty()) {
+            builder.field(TestSweet.FIELD_TARGETING, testSweet.targeting.source());
+        }
+        builder.endObject();
+    }
+
+    protected void testCasesToXContent(final XContentBuilder builder, final List<AbTestService.TestCase> testCases)
+            throws IOException {
+        builder.startArray(TEST_CASES);
+        for (final AbTestService.TestCase testCase : testCases) {
+            builder.startObject();
+            builder.field(AbTestService.TestCase.FIELD_TEST_NAME, testCase.testName);
+            builder.field(AbTestService.TestCase.FIELD_TEST_INDEX, testCase.testIndexName);
+            builder.field(AbTestService.TestCase.FIELD_PERCENTAGE, testCase.percentageValue());
+            builder.field(AbTestService.TestCase.FIELD_TYPE, testCase.type);
+            if (testCase.overlay != null) {
+                builder.field(AbTestService.TestCase.FIELD_PARAMS, testCase.overlay.source());
+            }
+            if (testCase.rampTimes.length > 0) {
+                builder.startArray(AbTestService.TestCase.FIELD_RAMP);
+                for (int i = 0; i < testCase.rampTimes.length; i++) {
+                    builder.startObject();
+                    builder.field(AbTestService.TestCase.FIELD_RAMP_AT, testCase.rampTimes[i]);
+                    builder.field(AbTestService.TestCase.FIELD_PERCENTAGE, testCase.rampPercentages[i]);
+                    builder.endObject();
+                }
+                builder.endArray();
+            }
+            builder.endObject();
+        }
+        builder.endArray();
+    }
+
     protected void sendAcknowledgeResponse(final RestChannel channel, final String testSweetName, final boolean acknowledge) {
         try {
             final XContentBuilder builder = JsonXContent.contentBuilder();
@@ -0,0 +1,207 @@
+package org.codelibs.elasticsearch.abtest.rest;
+
+import static org.elasticsearch.rest.RestStatus.OK;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.codelibs.elasticsearch.abtest.action.AbTestStatsAction;
+import org.codelibs.elasticsearch.abtest.action.AbTestStatsRequest;
+import org.codelibs.elasticsearch.abtest.action.AbTestStatsResponse;
+import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+import org.codelibs.elasticsearch.abtest.service.RoutingTable;
+import org.codelibs.elasticsearch.abtest.service.TestSweet;
+import org.codelibs.elasticsearch.abtest.service.Variant;
+import org.codelibs.elasticsearch.abtest.stats.TestCaseStats;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.cache.filter.FilterCacheStats;
+import org.elasticsearch.index.cache.query.QueryCacheStats;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+
+public class AbTestStatsRestAction extends BaseRestHandler {
+
+    protected final AbTestService service;
+
+    @Inject
+    public AbTestStatsRestAction(final Settings settings, final Client client,
+                                 final RestController controller, final AbTestService abTestService) {
+        super(settings, controller, client);
+
+        controller.registerHandler(RestRequest.Method.GET,
+            "/_abtest/stats", this);
+        controller.registerHandler(RestRequest.Method.GET,
+            "/{index}/_abtest/stats", this);
+
+        this.service = abTestService;
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request,
+            final RestChannel channel, Client client) {
+        final AbTestStatsRequest statsRequest = new AbTestStatsRequest();
+        final String testSweetName = request.param("index");
+        if (testSweetName != null) {
+            statsRequest.testSweets(service.normalizeTestSweetName(testSweetName));
+        }
+
+        final boolean cache = request.paramAsBoolean("cache", false);
+
+        client.execute(AbTestStatsAction.INSTANCE, statsRequest, new ActionListener<AbTestStatsResponse>() {
+            @Override
+            public void onResponse(final AbTestStatsResponse response) {
+                if (!cache) {
+                    sendResponse(channel, response, null, null);
+                    return;
+                }
+                final Map<String, Map<String, String>> cacheIndices = getCacheIndices(response);
+                final Set<String> indices = new HashSet<>();
+                for (final Map<String, String> testCases : cacheIndices.values()) {
+                    indices.addAll(testCases.values());
+                }
+                if (indices.isEmpty()) {
+                    sendResponse(channel, response, cacheIndices, null);
+                    return;
+                }
+                client.admin().indices().prepareStats(indices.toArray(new String[indices.size()])).clear()
+                    .setQueryCache(true).setFilterCache(true).setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                    .execute(new ActionListener<IndicesStatsResponse>() {
+                        @Override
+                        public void onResponse(final IndicesStatsResponse indicesStats) {
+                            sendResponse(channel, response, cacheIndices, indicesStats);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable t) {
+                            sendErrorResponse(channel, t);
+                        }
+                    });
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                sendErrorResponse(channel, t);
+            }
+        });
+    }
+
+    /**
+     * Returns the index searched by each test case of the statistics, whose caches the test case uses.
+     * Test cases of a test sweet which is not loaded on this node are skipped.
+     */
+    protected Map<String, Map<String, String>> getCacheIndices(final AbTestStatsResponse response) {
+        final Map<String, Map<String, String>> cacheIndices = new TreeMap<>();
+        for (final Map.Entry<String, Map<String, TestCaseStats>> entry : response.getTestSweets().entrySet()) {
+            final RoutingTable table = service.routingTable(entry.getKey());
+            if (table == null || table.testSweet() == null) {
+                continue;
+            }
+            final Map<String, String> testCases = new TreeMap<>();
+            for (final String testName : entry.getValue().keySet()) {
+                final boolean shadow = testName.endsWith(Variant.SHADOW_SUFFIX);
+                String name = shadow ? testName.substring(0, testName.length() - Variant.SHADOW_SUFFIX.length())
+                    : testName;
+                // test cases of a layer are named {layer}:{test_name}
+                List<TestCase> candidates = table.testSweet().testCases;
+                final int separator = name.indexOf(RoutingTable.LAYER_SEPARATOR);
+                if (separator >= 0) {
+                    candidates = Collections.emptyList();
+                    for (final TestSweet layer : table.testSweet().layers) {
+                        if (name.regionMatches(0, layer.name, 0, separator) && layer.name.length() == separator) {
+                            candidates = layer.testCases;
+                            break;
+                        }
+                    }
+                    name = name.substring(separator + 1);
+                }
+                if (Variant.DEFAULT_TEST_NAME.equals(name)) {
+                    testCases.put(testName, entry.getKey());
+                    continue;
+                }
+                for (final TestCase testCase : candidates) {
+                    if (name.equals(testCase.testName)) {
+                        testCases.put(testName, shadow || !TestCase.TYPE_SHADOW.equals(testCase.type)
+                            ? testCase.testIndexName : entry.getKey());
+                        break;
+                    }
+                }
+            }
+            cacheIndices.put(entry.getKey(), testCases);
+        }
+        return cacheIndices;
+    }
+
+    protected void sendResponse(final RestChannel channel, final AbTestStatsResponse response,
+            final Map<String, Map<String, String>> cacheIndices, final IndicesStatsResponse indicesStats) {
+        try {
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder.startObject();
+            response.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            if (cacheIndices != null) {
+                // cache statistics are of indices, so they are keyed by index with the test cases searching it
+                final Map<String, List<String>> testCasesByIndex = new TreeMap<>();
+                for (final Map.Entry<String, Map<String, String>> entry : cacheIndices.entrySet()) {
+                    for (final Map.Entry<String, String> testCase : entry.getValue().entrySet()) {
+                        testCasesByIndex.computeIfAbsent(testCase.getValue(), index -> new ArrayList<>())
+                            .add(entry.getKey() + "/" + testCase.getKey());
+                    }
+                }
+                builder.startObject("caches");
+                for (final Map.Entry<String, List<String>> entry : testCasesByIndex.entrySet()) {
+                    builder.startObject(entry.getKey());
+                    builder.field("testcases", entry.getValue());
+                    final IndexStats indexStats = indicesStats != null ? indicesStats.getIndex(entry.getKey()) : null;
+                    if (indexStats != null) {
+                        final QueryCacheStats queryCache = indexStats.getTotal().getQueryCache();
+                        final long lookups = queryCache.getHitCount() + queryCache.getMissCount();
+                        builder.startObject("query_cache");
+                        builder.field("hit_count", queryCache.getHitCount());
+                        builder.field("miss_count", queryCache.getMissCount());
+                        builder.field("hit_ratio", lookups > 0 ? (double) queryCache.getHitCount() / lookups : 0.0);
+                        builder.field("evictions", queryCache.getEvictions());
+                        builder.endObject();
+                        final FilterCacheStats filterCache = indexStats.getTotal().getFilterCache();
+                        builder.startObject("filter_cache");
+                        builder.field("memory_size_in_bytes", filterCache.getMemorySizeInBytes());
+                        builder.field("evictions", filterCache.getEvictions());
+                        builder.endObject();
+                    }
+                    builder.endObject();
+                }
+                builder.endObject();
+            }
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (IOException e) {
+            sendErrorResponse(channel, e);
+        }
+    }
+
+    protected void sendErrorResponse(final RestChannel channel, final Throwable t) {
+        try {
+            logger.error(t.getMessage(), t);
+            channel.sendResponse(new BytesRestResponse(channel, t));
+        } catch(IOException e) {
+            logger.error("Failed to send a failure response.", e);
+        }
+    }
+}
@@ -1,56 +1,193 @@
 package org.codelibs.elasticsearch.abtest.service;
 
+import org.codelibs.elasticsearch.abtest.action.TransportUpdateTestSweetAction;
+import org.codelibs.elasticsearch.abtest.action.UpdateTestSweetRequest;
+import org.codelibs.elasticsearch.abtest.action.UpdateTestSweetResponse;
+import org.codelibs.elasticsearch.abtest.cluster.AbTestMetaData;
 import org.codelibs.elasticsearch.abtest.exception.AbTestException;
 import org.codelibs.elasticsearch.abtest.filter.rest.PutParamToContextRestFilter;
 import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
+import org.codelibs.elasticsearch.abtest.stats.AbTestStats;
+import org.codelibs.elasticsearch.abtest.stats.CircuitBreaker;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
-import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.ActionFilter;
 import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.ProcessedClusterStateUpdateTask;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.ContextAndHeaderHolder;
+import org.elasticsearch.common.base.Strings;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.gateway.GatewayService;
+import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.IndexMissingException;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.ThreadPool;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
-public class AbTestService extends AbstractLifecycleComponent<AbTestService> {
+public class AbTestService extends AbstractLifecycleComponent<AbTestService> implements ClusterStateListener {
     protected static final String TEST_SETTING_INDEX = ".abtest";
+    protected static final String TEST_SWEET_ID = "testsweet";
 
-    protected static final int MIN_TEST_NUMBER = 0;
-    protected static final int MAX_TEST_NUMBER = 99;
+    protected static final String SETTING_ROUTING_REFRESH_INTERVAL = "abtest.routing.refresh_interval";
+    protected static final String SETTING_ROUTING_ABSENT_CACHE_SIZE = "abtest.routing.absent_cache_size";
+    protected static final String SETTING_STORE_TYPE = "abtest.store.type";
+    protected static final String SETTING_PRELOAD_ENABLED = "abtest.preload.enabled";
+    protected static final String SETTING_PRELOAD_TIMEOUT = "abtest.preload.timeout";
+    protected static final String SETTING_PRELOAD_SEARCH_WAIT = "abtest.preload.search_wait";
+
+    protected static final String STORE_TYPE_INDEX = "index";
+    protected static final String STORE_TYPE_CLUSTER_STATE = "cluster_state";
 
     protected final Client client;
     protected final RestController restController;
+    protected final ThreadPool threadPool;
+    protected final ClusterService clusterService;
+    protected final TransportUpdateTestSweetAction updateTestSweetAction;
+    protected final AbTestStats stats;
+    protected final IndexWarmer indexWarmer;
+
+    // true if test sweets are stored in the cluster state instead of .abtest index
+    protected final boolean clusterStateStore;
+
+    // test sweet name -> routing table of an existing test sweet
+    protected final ConcurrentMap<String, RoutingTable> routingTables = ConcurrentCollections.newConcurrentMap();
+    // names which are known to have no test sweet, e.g. indices searched with ab_rt,
+    // bounded and expired after the refresh interval so that any name can be searched
+    protected final Cache<String, Boolean> absentTestSweets;
+    protected final Map<String, List<Consumer<RoutingTable>>> pendingLoads = new HashMap<>();
+
+    protected final TimeValue refreshInterval;
+    protected volatile ScheduledFuture<?> refreshFuture;
+
+    // generation of the latest publish of the cluster state metadata, guarded by publishLock
+    protected final Object publishLock = new Object();
+    protected long publishGeneration;
+
+    // pending ramp step, which rebuilds routing tables at rampTime
+    protected final Object rampLock = new Object();
+    protected ScheduledFuture<?> rampFuture;
+    protected long rampTime = Long.MAX_VALUE;
+
+    // number of previous versions kept for rollback
+    protected final int historySize;
+
+    // routing of searches waits until all test sweets are loaded at startup
+    protected final boolean preloadEnabled;
+    protected final TimeValue preloadTimeout;
+    // how long a search waits for the preload before it is routed by the tables loaded so far
+    protected final TimeValue preloadSearchWait;
+    protected final AtomicBoolean preloadStarted = new AtomicBoolean();
+    protected volatile ScheduledFuture<?> preloadTimeoutFuture;
+    protected volatile boolean ready;
+    protected final List<Runnable> readyWaiters = new ArrayList<>();
+
+    // retries of a test sweet update which conflicts with another one
+    private static final int MAX_PUBLISH_RETRIES = 3;
+
+    // test sweets read at a time by scanTestSweets
+    private static final int SCAN_PAGE_SIZE = 100;
 
     @Inject
     public AbTestService(final Settings settings, final Client client,
-                         final RestController restController, final ActionFilters actionFilters) {
+                         final RestController restController, final ActionFilters actionFilters,
+                         final ThreadPool threadPool, final ClusterService clusterService,
+                         final TransportUpdateTestSweetAction updateTestSweetAction, final AbTestStats stats,
+                         final IndexWarmer indexWarmer) {
         super(settings);
         logger.info("CREATE AbTestService");
 
         this.client = client;
         this.restController = restController;
+        this.threadPool = threadPool;
+        this.clusterService = clusterService;
+        this.updateTestSweetAction = updateTestSweetAction;
+        this.stats = stats;
+        this.indexWarmer = indexWarmer;
+
+        final String storeType = settings.get(SETTING_STORE_TYPE, STORE_TYPE_INDEX);
+        if(STORE_TYPE_CLUSTER_STATE.equals(storeType)) {
+            clusterStateStore = true;
+        } else if(STORE_TYPE_INDEX.equals(storeType)) {
+            clusterStateStore = false;
+        } else {
+            throw new AbTestException("Unknown " + SETTING_STORE_TYPE + ": " + storeType);
+        }
+        this.refreshInterval = settings.getAsTime(SETTING_ROUTING_REFRESH_INTERVAL, TimeValue.timeValueSeconds(10));
+        final CacheBuilder<Object, Object> absentCacheBuilder =
+            CacheBuilder.newBuilder().maximumSize(settings.getAsInt(SETTING_ROUTING_ABSENT_CACHE_SIZE, 10000));
+        if (refreshInterval.millis() > 0) {
+            absentCacheBuilder.expireAfterWrite(refreshInterval.millis(), TimeUnit.MILLISECONDS);
+        }
+        this.absentTestSweets = absentCacheBuilder.build();
+        this.historySize = settings.getAsInt(TestSweet.SETTING_HISTORY_SIZE, TestSweet.DEFAULT_HISTORY_SIZE);
+        this.preloadEnabled = settings.getAsBoolean(SETTING_PRELOAD_ENABLED, true);
+        this.preloadTimeout = settings.getAsTime(SETTING_PRELOAD_TIMEOUT, TimeValue.timeValueMinutes(1));
+        this.preloadSearchWait = settings.getAsTime(SETTING_PRELOAD_SEARCH_WAIT, TimeValue.timeValueMillis(200));
+        this.ready = !preloadEnabled;
 
         for(final ActionFilter filter: actionFilters.filters()) {
             if(filter instanceof AbTestSearchActionFilter) {
@@ -63,13 +200,52 @@ public class AbTestService extends AbstractLifecycleComponent<AbTestService> {
     protected void doStart() throws ElasticsearchException {
         logger.info("START AbTestService");
 
-        final PutParamToContextRestFilter filter = new PutParamToContextRestFilter();
+        final PutParamToContextRestFilter filter = new PutParamToContextRestFilter(settings);
         restController.registerFilter(filter);
+
+        if (clusterStateStore || preloadEnabled) {
+            clusterService.add(this);
+        }
+        if (preloadEnabled) {
+            preloadTimeoutFuture = threadPool.schedule(preloadTimeout, ThreadPool.Names.GENERIC, () -> {
+                if (!ready) {
+                    logger.warn("Preloading test sweets did not complete in {}.", preloadTimeout);
+                    markReady();
+                }
+            });
+            startPreload(clusterService.state());
+        } else if (clusterStateStore) {
+            publishRoutingTables(AbTestMetaData.get(clusterService.state().metaData()), () -> {});
+        }
+        if (!clusterStateStore && refreshInterval.millis() > 0) {
+            refreshFuture = threadPool.scheduleWithFixedDelay(this::refreshRoutingTables, refreshInterval);
+        }
     }
 
     @Override
     protected void doStop() throws ElasticsearchException {
         logger.info("STOP AbTestService");
+
+        if (clusterStateStore || preloadEnabled) {
+            clusterService.remove(this);
+        }
+        if (preloadTimeoutFuture != null) {
+            preloadTimeoutFuture.cancel(false);
+            preloadTimeoutFuture = null;
+        }
+        if (refreshFuture != null) {
+            refreshFuture.cancel(false);
+            refreshFuture = null;
+        }
+        synchronized (rampLock) {
+            if (rampFuture != null) {
+                rampFuture.cancel(false);
+                rampFuture = null;
+            }
+            rampTime = Long.MAX_VALUE;
+        }
+        routingTables.clear();
+        absentTestSweets.invalidateAll();
     }
 
     @Override
@@ -77,87 +253,1120 @@ public class AbTestService extends AbstractLifecycleComponent<AbTestService> {
         logger.info("CLOSE AbTestService");
     }
 
-    public void rewriteIndex(final String originalIndex, final String rt, final Consumer<String> consumer) {
-        if(!validateRt(rt)) {
-            consumer.accept(originalIndex);
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+        if (preloadEnabled && !preloadStarted.get()) {
+            // the preload reads the metadata of this state
+            startPreload(event.state());
+            return;
+        }
+        if (!clusterStateStore || !event.metaDataChanged()) {
+            return;
+        }
+        final AbTestMetaData metaData = AbTestMetaData.get(event.state().metaData());
+        if (metaData.equals(AbTestMetaData.get(event.previousState().metaData()))) {
+            return;
+        }
+        publishRoutingTables(metaData, () -> {});
+    }
+
+    /**
+     * Returns true if searches are routed, i.e. all test sweets have been loaded at startup.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Runs the task when searches are routed, or at once if they already are.
+     * The task waits for abtest.preload.search_wait at most, and then runs with the routing tables loaded so far,
+     * so a slow preload does not stall searches.
+     */
+    public void whenReady(final Runnable task) {
+        if (preloadSearchWait.millis() > 0) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final Runnable once = () -> {
+                if (done.compareAndSet(false, true)) {
+                    task.run();
+                }
+            };
+            synchronized (readyWaiters) {
+                if (!ready) {
+                    readyWaiters.add(once);
+                    threadPool.schedule(preloadSearchWait, ThreadPool.Names.GENERIC, () -> {
+                        synchronized (readyWaiters) {
+                            readyWaiters.remove(once);
+                        }
+                        once.run();
+                    });
+                    return;
+                }
+            }
+        }
+        task.run();
+    }
+
+    protected void markReady() {
+        final List<Runnable> tasks;
+        synchronized (readyWaiters) {
+            if (ready) {
+                return;
+            }
+            ready = true;
+            tasks = new ArrayList<>(readyWaiters);
+            readyWaiters.clear();
+        }
+        if (preloadTimeoutFuture != null) {
+            preloadTimeoutFuture.cancel(false);
+        }
+        logger.info("Routing searches with {} test sweets.", routingTables.size());
+        for (final Runnable task : tasks) {
+            threadPool.generic().execute(task);
+        }
+    }
+
+    /**
+     * Starts loading all test sweets once the state is recovered.
+     */
+    protected void startPreload(final ClusterState state) {
+        if (state.blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK) || state.nodes().masterNodeId() == null
+            || !preloadStarted.compareAndSet(false, true)) {
             return;
         }
 
-        final String testSweetName = normalizeTestSweetName(originalIndex);
+        if (clusterStateStore) {
+            publishRoutingTables(AbTestMetaData.get(state.metaData()), this::markReady);
+            return;
+        }
 
-        client.prepareGet()
-            .setIndex(TEST_SETTING_INDEX)
-            .setType(testSweetName)
-            .setId(String.valueOf(rt))
-            .execute(new ActionListener<GetResponse>() {
-                @Override
-                public void onResponse(GetResponse getResponse) {
-                    String index = originalIndex;
-                    if (getResponse.isExists()) {
-                        final Map<String, Object> source = getResponse.getSourceAsMap();
-                        final Object indexObj = source.get(TestCase.FIELD_TEST_INDEX);
-                        if (indexObj != null) {
-                            index = indexObj.toString();
+        createSettingIndexIfNothing(() -> {
+            final long now = threadPool.estimatedTimeInMillis();
+            final AtomicInteger pending = new AtomicInteger(1);
+            final Runnable countDown = () -> {
+                if (pending.decrementAndGet() == 0) {
+                    markReady();
+                }
+            };
+            scanTestSweets(testSweet -> {
+                    final RoutingTable table = RoutingTable.build(testSweet, now, stats);
+                    pending.incrementAndGet();
+                    swapRoutingTable(testSweet.name, routingTables.get(testSweet.name), table, swapped -> {
+                        scheduleRampStep(table);
+                        countDown.run();
+                    });
+                }, countDown,
+                t -> {
+                    logger.error("Failed to preload test sweets.", t);
+                    markReady();
+                });
+        });
+    }
+
+    /**
+     * Publishes routing tables of all test sweets in the metadata and runs the callback when all of them are published.
+     */
+    protected void publishRoutingTables(final AbTestMetaData metaData, final Runnable callback) {
+        final long generation;
+        synchronized (publishLock) {
+            generation = ++publishGeneration;
+        }
+        final long now = threadPool.estimatedTimeInMillis();
+        final Set<String> names = new HashSet<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final Runnable countDown = () -> {
+            if (pending.decrementAndGet() == 0) {
+                // pruned after all swaps, so a late swap cannot bring back a deleted test sweet
+                synchronized (publishLock) {
+                    if (generation == publishGeneration) {
+                        for (final String name : new ArrayList<>(routingTables.keySet())) {
+                            if (!names.contains(name)) {
+                                removeRoutingTable(name);
+                            }
                         }
                     }
-                    consumer.accept(index);
                 }
+                callback.run();
+            }
+        };
+        for (final TestSweet testSweet : metaData.testSweets()) {
+            final RoutingTable table = RoutingTable.build(testSweet, now, stats);
+            names.add(testSweet.name);
+            pending.incrementAndGet();
+            swapRoutingTable(testSweet.name, routingTables.get(testSweet.name), table, generation, swapped -> {
+                if (swapped) {
+                    scheduleRampStep(table);
+                }
+                countDown.run();
+            });
+        }
+        countDown.run();
+    }
 
-                @Override
-                public void onFailure(Throwable e) {
-                    logger.error("Failed to get testcase.", e);
-                    consumer.accept(originalIndex);
+    protected void swapRoutingTable(final String testSweetName, final RoutingTable current, final RoutingTable table,
+                                    final Consumer<Boolean> callback) {
+        swapRoutingTable(testSweetName, current, table, -1L, callback);
+    }
+
+    /**
+     * Publishes the table by one swap unless the current one has been replaced meanwhile,
+     * or, for a table of a publish generation, a newer generation has been published.
+     * If the test sweet has warm-up queries, test indices which go live with the table are searched by them first,
+     * so their caches are warm when they get traffic.
+     */
+    protected void swapRoutingTable(final String testSweetName, final RoutingTable current, final RoutingTable table,
+                                    final long generation, final Consumer<Boolean> callback) {
+        final Runnable swap = () -> {
+            final boolean swapped;
+            synchronized (publishLock) {
+                if (generation >= 0 && generation != publishGeneration) {
+                    swapped = false;
+                } else {
+                    swapped = current == null ? routingTables.putIfAbsent(testSweetName, table) == null
+                        : routingTables.replace(testSweetName, current, table);
+                }
+            }
+            callback.accept(swapped);
+        };
+        if (table.testSweet() == null || table.testSweet().warmUpQueries.isEmpty()) {
+            swap.run();
+            return;
+        }
+        final Set<String> indices = table.liveIndices();
+        if (current != null) {
+            indices.removeAll(current.liveIndices());
+        }
+        if (indices.isEmpty()) {
+            swap.run();
+            return;
+        }
+        indexWarmer.warmUp(testSweetName, table.testSweet().warmUpQueries, indices, swap);
+    }
+
+    /**
+     * Schedules rebuilding routing tables at the next ramp step of the table, if it is earlier than the pending one.
+     */
+    protected void scheduleRampStep(final RoutingTable table) {
+        final long time = table.nextRampTime();
+        if (time == Long.MAX_VALUE || lifecycle.stoppedOrClosed()) {
+            return;
+        }
+        synchronized (rampLock) {
+            if (rampTime <= time) {
+                return;
+            }
+            if (rampFuture != null) {
+                rampFuture.cancel(false);
+            }
+            rampTime = time;
+            // the same clock as loadedTime of routing tables, which nextRampTime is computed from
+            final long delay = Math.max(0L, time - threadPool.estimatedTimeInMillis());
+            rampFuture = threadPool.schedule(TimeValue.timeValueMillis(delay), ThreadPool.Names.GENERIC,
+                this::applyRampSteps);
+        }
+    }
+
+    /**
+     * Rebuilds routing tables whose ramp step has come and publishes each of them by one swap,
+     * unless the table was reloaded meanwhile.
+     */
+    protected void applyRampSteps() {
+        synchronized (rampLock) {
+            rampFuture = null;
+            rampTime = Long.MAX_VALUE;
+        }
+        final long now = threadPool.estimatedTimeInMillis();
+        for (final Map.Entry<String, RoutingTable> entry : routingTables.entrySet()) {
+            final RoutingTable table = entry.getValue();
+            if (table.nextRampTime() <= now) {
+                final RoutingTable next = RoutingTable.build(table.testSweet(), now, stats);
+                swapRoutingTable(entry.getKey(), table, next, swapped -> {
+                    if (swapped) {
+                        logger.info("Applied ramp step of {}.", entry.getKey());
+                    }
+                    scheduleRampStep(next);
+                });
+            } else {
+                scheduleRampStep(table);
+            }
+        }
+    }
+
+    /**
+     * Selects the variants of the test sweet and its layers, loading its routing table if needed.
+     * An empty list is passed if there is no test sweet, or the request is not targeted by it.
+     *
+     * @param parentContext the context of the parent request, e.g. a multi search request, or null
+     */
+    public void rewriteIndex(final String testSweetName, final String rt, final boolean hash,
+                             final ContextAndHeaderHolder<?> context,
+                             final ContextAndHeaderHolder<?> parentContext,
+                             final Consumer<List<Variant>> consumer) {
+        if(Strings.isNullOrEmpty(rt)) {
+            consumer.accept(Collections.emptyList());
+            return;
+        }
+
+        final String normalizedTestSweetName = normalizeTestSweetName(testSweetName);
+        final RoutingTable table = cachedRoutingTable(normalizedTestSweetName);
+        if(table != null) {
+            consumer.accept(selectAll(table, rt, hash, context, parentContext));
+            return;
+        }
+        if(clusterStateStore) {
+            consumer.accept(Collections.emptyList());
+            return;
+        }
+
+        loadRoutingTable(normalizedTestSweetName,
+            loaded -> consumer.accept(selectAll(loaded, rt, hash, context, parentContext)));
+    }
+
+    /**
+     * Selects the variants of the test sweet and its layers from the in-memory routing table.
+     * Returns an empty list if there is no test sweet or the request is not targeted by it,
+     * or null if its routing table is not loaded yet, which never happens when test sweets are stored
+     * in the cluster state.
+     */
+    public List<Variant> resolveVariants(final String testSweetName, final String rt, final boolean hash,
+                                         final ContextAndHeaderHolder<?> context,
+                                         final ContextAndHeaderHolder<?> parentContext) {
+        if(Strings.isNullOrEmpty(rt)) {
+            return Collections.emptyList();
+        }
+
+        final RoutingTable table = cachedRoutingTable(normalizeTestSweetName(testSweetName));
+        if(table == null) {
+            return clusterStateStore ? Collections.emptyList() : null;
+        }
+        return selectAll(table, rt, hash, context, parentContext);
+    }
+
+    /**
+     * Returns the time of the clock which circuit breakers and ramp steps are driven by.
+     */
+    public long estimatedTimeInMillis() {
+        return threadPool.estimatedTimeInMillis();
+    }
+
+    /**
+     * Returns the loaded routing table of the test sweet, or null if it is not loaded.
+     */
+    public RoutingTable routingTable(final String testSweetName) {
+        return routingTables.get(normalizeTestSweetName(testSweetName));
+    }
+
+    /**
+     * Returns the routing table of the test sweet, RoutingTable.EMPTY if it is known to be absent,
+     * or null if it is not loaded.
+     */
+    protected RoutingTable cachedRoutingTable(final String normalizedTestSweetName) {
+        final RoutingTable table = routingTables.get(normalizedTestSweetName);
+        if(table == null && absentTestSweets.getIfPresent(normalizedTestSweetName) != null) {
+            return RoutingTable.EMPTY;
+        }
+        return table;
+    }
+
+    /**
+     * Drops the routing table of the test sweet and remembers that it does not exist.
+     */
+    protected void markAbsent(final String normalizedTestSweetName) {
+        absentTestSweets.put(normalizedTestSweetName, Boolean.TRUE);
+        removeRoutingTable(normalizedTestSweetName);
+    }
+
+    /**
+     * Drops the routing table of the test sweet with its metrics and circuit breakers,
+     * including those of its layers and shadow test cases.
+     */
+    protected void removeRoutingTable(final String normalizedTestSweetName) {
+        routingTables.remove(normalizedTestSweetName);
+        stats.remove(normalizedTestSweetName);
+    }
+
+    /**
+     * Rewrites each index of a search request by its own test sweet.
+     * Aliases and wildcards are expanded to concrete indices if any of them has a test sweet.
+     * The array is rewritten in place unless an expression is expanded.
+     * An index whose test sweet does not target the request is kept.
+     * Selected variants are added to the list.
+     * Returns null if some routing tables are not loaded yet.
+     */
+    public String[] resolveIndices(final String[] indices, final IndicesOptions indicesOptions,
+                                   final String rt, final boolean hash, final ContextAndHeaderHolder<?> context,
+                                   final ContextAndHeaderHolder<?> parentContext, final List<Variant> variants) {
+        if(Strings.isNullOrEmpty(rt)) {
+            return indices;
+        }
+
+        final MetaData metaData = metaData();
+        if(!clusterStateStore && collectUnloadedTestSweets(indices, indicesOptions, metaData) != null) {
+            return null;
+        }
+        return rewriteIndices(indices, indicesOptions, metaData, rt, hash, context, parentContext, variants);
+    }
+
+    /**
+     * Rewrites indices like resolveIndices, loading all missing routing tables in one batch.
+     */
+    public void rewriteIndices(final String[] indices, final IndicesOptions indicesOptions,
+                               final String rt, final boolean hash, final ContextAndHeaderHolder<?> context,
+                               final ContextAndHeaderHolder<?> parentContext, final List<Variant> variants,
+                               final Consumer<String[]> consumer) {
+        if(Strings.isNullOrEmpty(rt)) {
+            consumer.accept(indices);
+            return;
+        }
+
+        final MetaData metaData = metaData();
+        final Set<String> testSweetNames =
+            clusterStateStore ? null : collectUnloadedTestSweets(indices, indicesOptions, metaData);
+        if(testSweetNames == null) {
+            consumer.accept(rewriteIndices(indices, indicesOptions, metaData, rt, hash, context, parentContext, variants));
+            return;
+        }
+
+        loadRoutingTables(testSweetNames,
+            () -> consumer.accept(
+                rewriteIndices(indices, indicesOptions, metaData, rt, hash, context, parentContext, variants)));
+    }
+
+    /**
+     * Loads all missing routing tables for test sweets and indices of search requests in one batch.
+     * Used for a multi search so that its sub requests are resolved in one pass.
+     */
+    public void loadRoutingTables(final Collection<String> testSweetNames, final Collection<SearchRequest> searchRequests,
+                                  final Runnable callback) {
+        if(clusterStateStore) {
+            callback.run();
+            return;
+        }
+
+        final MetaData metaData = metaData();
+        Set<String> unloadedNames = null;
+        for(final String testSweetName : testSweetNames) {
+            unloadedNames = addUnloadedTestSweet(unloadedNames, testSweetName);
+        }
+        for(final SearchRequest searchRequest : searchRequests) {
+            final String[] indices = searchRequest.indices();
+            if(indices == null) {
+                continue;
+            }
+            final Set<String> names = collectUnloadedTestSweets(indices, searchRequest.indicesOptions(), metaData);
+            if(names != null) {
+                if(unloadedNames == null) {
+                    unloadedNames = names;
+                } else {
+                    unloadedNames.addAll(names);
+                }
+            }
+        }
+
+        if(unloadedNames == null) {
+            callback.run();
+        } else {
+            loadRoutingTables(unloadedNames, callback);
+        }
+    }
+
+    protected String[] rewriteIndices(final String[] indices, final IndicesOptions indicesOptions,
+                                      final MetaData metaData, final String rt, final boolean hash,
+                                      final ContextAndHeaderHolder<?> context,
+                                      final ContextAndHeaderHolder<?> parentContext,
+                                      final List<Variant> variants) {
+        List<String> expandedIndices = null;
+        for(int i = 0; i < indices.length; i++) {
+            final String index = indices[i];
+            final String[] concreteIndices = hasTestSweet(index) ? null : expandIndex(index, indicesOptions, metaData);
+            if(concreteIndices != null && hasTestSweet(concreteIndices)) {
+                if(expandedIndices == null) {
+                    expandedIndices = new ArrayList<>(Arrays.asList(indices).subList(0, i));
+                }
+                for(final String concreteIndex : concreteIndices) {
+                    expandedIndices.add(route(concreteIndex, rt, hash, context, parentContext, variants));
+                }
+            } else if(expandedIndices != null) {
+                expandedIndices.add(route(index, rt, hash, context, parentContext, variants));
+            } else {
+                indices[i] = route(index, rt, hash, context, parentContext, variants);
+            }
+        }
+        return expandedIndices == null ? indices : expandedIndices.toArray(new String[expandedIndices.size()]);
+    }
+
+    protected MetaData metaData() {
+        return clusterService.state().metaData();
+    }
+
+    /**
+     * Returns normalized names of test sweets which are not loaded, or null if all are loaded.
+     */
+    protected Set<String> collectUnloadedTestSweets(final String[] indices, final IndicesOptions indicesOptions,
+                                                    final MetaData metaData) {
+        Set<String> testSweetNames = null;
+        for(final String index : indices) {
+            testSweetNames = addUnloadedTestSweet(testSweetNames, index);
+            final String[] concreteIndices = expandIndex(index, indicesOptions, metaData);
+            if(concreteIndices != null) {
+                for(final String concreteIndex : concreteIndices) {
+                    testSweetNames = addUnloadedTestSweet(testSweetNames, concreteIndex);
+                }
+            }
+        }
+        return testSweetNames;
+    }
+
+    private Set<String> addUnloadedTestSweet(Set<String> testSweetNames, final String index) {
+        final String testSweetName = normalizeTestSweetName(index);
+        if(cachedRoutingTable(testSweetName) == null) {
+            if(testSweetNames == null) {
+                testSweetNames = new LinkedHashSet<>();
+            }
+            testSweetNames.add(testSweetName);
+        }
+        return testSweetNames;
+    }
+
+    /**
+     * Expands an alias or a wildcard expression to concrete indices.
+     * Returns null for a concrete index, an unknown name, or an alias with a filter or routing,
+     * which would be lost by expansion.
+     */
+    protected String[] expandIndex(final String index, final IndicesOptions indicesOptions, final MetaData metaData) {
+        if(metaData.hasConcreteIndex(index)) {
+            return null;
+        }
+        final String[] concreteIndices;
+        try {
+            concreteIndices = metaData.concreteIndices(indicesOptions, index);
+        } catch(final IndexMissingException e) {
+            return null;
+        }
+        for(final String concreteIndex : concreteIndices) {
+            final IndexMetaData indexMetaData = metaData.index(concreteIndex);
+            if(indexMetaData == null) {
+                continue;
+            }
+            final AliasMetaData aliasMetaData = indexMetaData.aliases().get(index);
+            if(aliasMetaData != null && (aliasMetaData.filter() != null || aliasMetaData.searchRouting() != null)) {
+                return null;
+            }
+        }
+        return concreteIndices;
+    }
+
+    protected boolean hasTestSweet(final String index) {
+        final RoutingTable table = routingTables.get(normalizeTestSweetName(index));
+        return table != null && !table.isEmpty();
+    }
+
+    protected boolean hasTestSweet(final String[] indices) {
+        for(final String index : indices) {
+            if(hasTestSweet(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected String route(final String index, final String rt, final boolean hash,
+                           final ContextAndHeaderHolder<?> context, final ContextAndHeaderHolder<?> parentContext,
+                           final List<Variant> variants) {
+        final RoutingTable table = routingTables.get(normalizeTestSweetName(index));
+        if(table == null || !table.targeting().matches(context, parentContext)) {
+            return index;
+        }
+        final int from = variants.size();
+        select(table, rt, hash, variants);
+        return Variant.index(variants, from, index);
+    }
+
+    /**
+     * Selects the variants of the table and its layers, or none if the request is not targeted.
+     */
+    protected List<Variant> selectAll(final RoutingTable table, final String rt, final boolean hash,
+                                      final ContextAndHeaderHolder<?> context,
+                                      final ContextAndHeaderHolder<?> parentContext) {
+        if(!table.targeting().matches(context, parentContext)) {
+            return Collections.emptyList();
+        }
+        if(table.layers().length == 0) {
+            final Variant variant = select(table, rt, hash);
+            return variant == Variant.NONE ? Collections.emptyList() : Collections.singletonList(variant);
+        }
+        final List<Variant> variants = new ArrayList<>(table.layers().length + 1);
+        select(table, rt, hash, variants);
+        return variants;
+    }
+
+    /**
+     * Adds the variants of the table and its layers to the list, in order of precedence.
+     * Each layer is bucketed by its own salt, so a request gets one test case per layer.
+     */
+    protected void select(final RoutingTable table, final String rt, final boolean hash, final List<Variant> variants) {
+        final Variant variant = select(table, rt, hash);
+        if(variant != Variant.NONE) {
+            variants.add(variant);
+        }
+        for(final RoutingTable layer : table.layers()) {
+            final Variant layerVariant = select(layer, rt, hash);
+            if(layerVariant != Variant.NONE) {
+                variants.add(layerVariant);
+            }
+        }
+    }
+
+    protected Variant select(final RoutingTable table, final String rt, final boolean hash) {
+        if(table.isEmpty()) {
+            return Variant.NONE;
+        }
+        final int bucket = hash ? convertTestCaseKey(rt, table.salt(), table.buckets()) : parseRt(rt);
+        final Variant variant = table.select(bucket);
+        if(variant.breaker != null && !variant.breaker.isClosed()) {
+            final long ticket = variant.breaker.allowRequest(threadPool.estimatedTimeInMillis());
+            if(ticket == CircuitBreaker.REJECTED) {
+                return table.defaultVariant();
+            }
+            if(ticket != CircuitBreaker.NO_PROBE) {
+                return variant.probe(ticket);
+            }
+        }
+        return variant;
+    }
+
+    protected void loadRoutingTable(final String testSweetName, final Consumer<RoutingTable> consumer) {
+        loadRoutingTables(Collections.singleton(testSweetName), () -> {
+            final RoutingTable table = routingTables.get(testSweetName);
+            consumer.accept(table != null ? table : RoutingTable.EMPTY);
+        });
+    }
+
+    /**
+     * Loads routing tables of test sweets in one batch.
+     * Test sweets which are already being loaded are not loaded again.
+     */
+    protected void loadRoutingTables(final Collection<String> testSweetNames, final Runnable callback) {
+        final AtomicInteger remaining = new AtomicInteger(testSweetNames.size());
+        final Consumer<RoutingTable> consumer = table -> {
+            if (remaining.decrementAndGet() == 0) {
+                callback.run();
+            }
+        };
+        final List<String> names = new ArrayList<>();
+        synchronized (pendingLoads) {
+            for (final String testSweetName : testSweetNames) {
+                List<Consumer<RoutingTable>> consumers = pendingLoads.get(testSweetName);
+                if (consumers == null) {
+                    consumers = new ArrayList<>();
+                    pendingLoads.put(testSweetName, consumers);
+                    names.add(testSweetName);
+                }
+                consumers.add(consumer);
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+
+        loadTestSweets(names,
+            testSweets -> {
+                final long now = threadPool.estimatedTimeInMillis();
+                for (final String testSweetName : names) {
+                    final TestSweet testSweet = testSweets.get(testSweetName);
+                    if (testSweet == null) {
+                        markAbsent(testSweetName);
+                        notifyRoutingTableLoaded(testSweetName, RoutingTable.EMPTY);
+                        continue;
+                    }
+                    absentTestSweets.invalidate(testSweetName);
+                    final RoutingTable current = routingTables.get(testSweetName);
+                    if (isLoadedFrom(current, testSweet) && current.nextRampTime() > now) {
+                        // unchanged, e.g. on a refresh, so the table and its state are kept
+                        notifyRoutingTableLoaded(testSweetName, current);
+                        continue;
+                    }
+                    final RoutingTable table = RoutingTable.build(testSweet, now, stats);
+                    swapRoutingTable(testSweetName, current, table,
+                        swapped -> {
+                            scheduleRampStep(table);
+                            notifyRoutingTableLoaded(testSweetName, table);
+                        });
+                }
+            },
+            t -> {
+                final boolean missing = ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException;
+                if (!missing) {
+                    logger.error("Failed to load testcases of {}.", t, names);
+                }
+                for (final String testSweetName : names) {
+                    if (missing) {
+                        markAbsent(testSweetName);
+                    }
+                    notifyRoutingTableLoaded(testSweetName, RoutingTable.EMPTY);
                 }
             });
     }
 
-    public String convertTestCaseKey(final String str) {
-        return String.valueOf(str.hashCode() % 100);
+    /**
+     * Returns true if the table is built from the same version and settings of the test sweet.
+     */
+    protected static boolean isLoadedFrom(final RoutingTable table, final TestSweet testSweet) {
+        if (table == null || table.testSweet() == null) {
+            return false;
+        }
+        final TestSweet loaded = table.testSweet();
+        return loaded == testSweet || loaded.version == testSweet.version && loaded.equals(testSweet);
+    }
+
+    protected void notifyRoutingTableLoaded(final String testSweetName, final RoutingTable table) {
+        final List<Consumer<RoutingTable>> consumers;
+        synchronized (pendingLoads) {
+            consumers = pendingLoads.remove(testSweetName);
+        }
+        if (consumers != null) {
+            for (final Consumer<RoutingTable> consumer : consumers) {
+                consumer.accept(table);
+            }
+        }
+    }
+
+    /**
+     * Reloads all routing tables of existing test sweets.
+     * Changes made on other nodes become visible within the refresh interval,
+     * and test sweets created for absent names when their absent entries expire.
+     */
+    protected void refreshRoutingTables() {
+        if (!routingTables.isEmpty()) {
+            loadRoutingTables(new ArrayList<>(routingTables.keySet()), () -> {});
+        }
+    }
+
+    public int convertTestCaseKey(final String str, final int salt, final int buckets) {
+        return BucketHash.bucket(str, salt, buckets);
     }
 
     public void updateTestSweet(final String testSweetName, final List<Map<String, Object>> testCases,
                                  final Consumer<Boolean> success, final Consumer<Throwable> error) {
+        updateTestSweet(TestSweet.parse(normalizeTestSweetName(testSweetName), testCases), success, error);
+    }
+
+    public void updateTestSweet(final String testSweetName, final Map<String, Object> source,
+                                final Consumer<Boolean> success, final Consumer<Throwable> error) {
+        updateTestSweet(TestSweet.parse(normalizeTestSweetName(testSweetName), source), success, error);
+    }
+
+    protected void updateTestSweet(final TestSweet testSweet, final Consumer<Boolean> success,
+                                   final Consumer<Throwable> error) {
+        final String normalizedTestSweetName = testSweet.name;
+
+        if(clusterStateStore) {
+            updateClusterState(new UpdateTestSweetRequest().put(testSweet), success, error);
+            return;
+        }
+
+        publishTestSweet(normalizedTestSweetName, current -> TestSweet.publish(current, testSweet, historySize),
+            success, error, MAX_PUBLISH_RETRIES);
+    }
+
+    /**
+     * Switches the test sweet back to the version in its history, or the previous one if version is negative.
+     */
+    public void rollbackTestSweet(final String testSweetName, final long version, final Consumer<Boolean> success,
+                                  final Consumer<Throwable> error) {
         final String normalizedTestSweetName = normalizeTestSweetName(testSweetName);
-        final BulkRequest bulkRequest = new BulkRequest();
+        if(clusterStateStore) {
+            updateClusterState(new UpdateTestSweetRequest().rollback(normalizedTestSweetName, version), success, error);
+            return;
+        }
 
-        int testCount = 0;
-        for(final Map<String, Object> map: testCases) {
-            final TestCase testCase = TestCase.parse(map);
-            for(int i=0; i<testCase.percentage; i++) {
-                bulkRequest.add(createIndexRequest(normalizedTestSweetName, testCase, testCount++));
+        publishTestSweet(normalizedTestSweetName, current -> {
+            if(current == null) {
+                throw new IllegalArgumentException("Test sweet " + normalizedTestSweetName + " does not exist.");
             }
-            if(MAX_TEST_NUMBER < testCount) {
-                throw new IllegalArgumentException("Too many testcase.");
+            return current.rollback(version, historySize);
+        }, success, error, MAX_PUBLISH_RETRIES);
+    }
+
+    /**
+     * Loads test sweets whose allocation is Thompson sampling.
+     */
+    public void banditTestSweets(final Consumer<List<TestSweet>> success, final Consumer<Throwable> error) {
+        final List<TestSweet> testSweets = new ArrayList<>();
+        scanTestSweets(QueryBuilders.boolQuery().must(QueryBuilders.idsQuery().addIds(TEST_SWEET_ID))
+            .must(QueryBuilders.termQuery(TestSweet.FIELD_ALLOCATION, TestSweet.ALLOCATION_THOMPSON)), testSweet -> {
+                if(TestSweet.ALLOCATION_THOMPSON.equals(testSweet.allocation)) {
+                    testSweets.add(testSweet);
+                }
+            }, () -> success.accept(testSweets), error);
+    }
+
+    /**
+     * Publishes a new version of the test sweet whose test cases have the bucket sizes.
+     * Fails if the test sweet is no longer the version, so a concurrent update is not overwritten.
+     * In the cluster state store, this must be called on the master node.
+     */
+    public void reallocateTestSweet(final String normalizedTestSweetName, final long version,
+                                    final Map<String, Integer> bucketSizes, final Consumer<Boolean> success,
+                                    final Consumer<Throwable> error) {
+        final Function<TestSweet, TestSweet> reallocate = current -> {
+            if(current == null || current.version != version) {
+                throw new AbTestException(normalizedTestSweetName + " is not version " + version + ".");
             }
+            return current.reallocate(bucketSizes);
+        };
+        if(!clusterStateStore) {
+            publishTestSweet(normalizedTestSweetName,
+                current -> TestSweet.publish(current, reallocate.apply(current), historySize), success, error, 0);
+            return;
         }
 
-        for(; testCount <= MAX_TEST_NUMBER; testCount++) {
-            bulkRequest.add(createDeleteRequest(normalizedTestSweetName, testCount++));
-        }
+        clusterService.submitStateUpdateTask("abtest-reallocate", new ProcessedClusterStateUpdateTask() {
+            @Override
+            public ClusterState execute(final ClusterState currentState) {
+                final MetaData metaData = currentState.metaData();
+                final AbTestMetaData abTestMetaData = AbTestMetaData.get(metaData);
+                final TestSweet testSweet = reallocate.apply(abTestMetaData.testSweet(normalizedTestSweetName));
+                return ClusterState.builder(currentState).metaData(MetaData.builder(metaData).putCustom(AbTestMetaData.TYPE,
+                    abTestMetaData.update(Collections.singletonMap(normalizedTestSweetName, testSweet),
+                        Collections.emptyList(), Collections.emptyMap(), historySize))).build();
+            }
 
-        client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
             @Override
-            public void onResponse(BulkResponse bulkItemResponses) {
-                if (bulkItemResponses.hasFailures()) {
-                    error.accept(new AbTestException());
-                } else {
-                    success.accept(true);
-                }
+            public void onFailure(final String source, final Throwable t) {
+                error.accept(t);
             }
 
             @Override
-            public void onFailure(Throwable e) {
-                error.accept(e);
+            public void clusterStateProcessed(final String source, final ClusterState oldState, final ClusterState newState) {
+                success.accept(true);
             }
         });
     }
 
+    /**
+     * Replaces the test sweet document with the next version computed from the current one in one write.
+     * The write is conditional on the document version which is read, so a concurrent update is retried
+     * instead of being overwritten.
+     */
+    protected void publishTestSweet(final String normalizedTestSweetName, final Function<TestSweet, TestSweet> next,
+                                    final Consumer<Boolean> success, final Consumer<Throwable> error, final int retries) {
+        final Consumer<GetResponse> write = getResponse -> {
+            final IndexRequest indexRequest;
+            try {
+                if(getResponse != null && getResponse.isExists()) {
+                    final TestSweet current = TestSweet.parse(normalizedTestSweetName, getResponse.getSourceAsMap());
+                    indexRequest = createIndexRequest(next.apply(current)).version(getResponse.getVersion());
+                } else {
+                    indexRequest = createIndexRequest(next.apply(null)).opType(IndexRequest.OpType.CREATE);
+                }
+            } catch(final Exception e) {
+                error.accept(e);
+                return;
+            }
+            client.index(indexRequest, new ActionListener<IndexResponse>() {
+                @Override
+                public void onResponse(IndexResponse indexResponse) {
+                    loadRoutingTable(normalizedTestSweetName, table -> {});
+                    success.accept(true);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    final Throwable cause = ExceptionsHelper.unwrapCause(e);
+                    if(retries > 0
+                        && (cause instanceof VersionConflictEngineException || cause instanceof DocumentAlreadyExistsException)) {
+                        publishTestSweet(normalizedTestSweetName, next, success, error, retries - 1);
+                    } else {
+                        error.accept(e);
+                    }
+                }
+            });
+        };
+        client.prepareGet(TEST_SETTING_INDEX, normalizedTestSweetName, TEST_SWEET_ID).setRealtime(true)
+            .execute(new ActionListener<GetResponse>() {
+                @Override
+                public void onResponse(GetResponse getResponse) {
+                    write.accept(getResponse);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    if(ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException) {
+                        write.accept(null);
+                    } else {
+                        error.accept(e);
+                    }
+                }
+            });
+    }
+
     public void deleteTestSweet(final String testSweetName, final Consumer<Boolean> success, final Consumer<Throwable> error) {
 
-        client.prepareDelete().setIndex(TEST_SETTING_INDEX).setType(normalizeTestSweetName(testSweetName))
+        final String normalizedTestSweetName = normalizeTestSweetName(testSweetName);
+        if(clusterStateStore) {
+            updateClusterState(new UpdateTestSweetRequest().delete(normalizedTestSweetName), success, error);
+            return;
+        }
+
+        client.prepareDelete(TEST_SETTING_INDEX, normalizedTestSweetName, TEST_SWEET_ID)
             .execute(new ActionListener<DeleteResponse>() {
                 @Override
                 public void onResponse(DeleteResponse deleteResponse) {
+                    markAbsent(normalizedTestSweetName);
+                    deleteLegacyTestSweet(normalizedTestSweetName, success, error);
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    error.accept(throwable);
+                }
+            });
+    }
+
+    /**
+     * Publishes and deletes many test sweets in one write.
+     * In the index store, the write is one bulk request conditional on the document versions which are read,
+     * so a test sweet which is updated concurrently fails instead of being overwritten. The others are still written.
+     */
+    public void updateTestSweets(final Map<String, Map<String, Object>> puts, final Collection<String> deletes,
+                                 final Consumer<Boolean> success, final Consumer<Throwable> error) {
+        final Map<String, TestSweet> testSweets = new LinkedHashMap<>();
+        for(final Map.Entry<String, Map<String, Object>> entry : puts.entrySet()) {
+            final String normalizedTestSweetName = normalizeTestSweetName(entry.getKey());
+            testSweets.put(normalizedTestSweetName, TestSweet.parse(normalizedTestSweetName, entry.getValue()));
+        }
+        final Set<String> normalizedDeletes = new LinkedHashSet<>();
+        for(final String name : deletes) {
+            normalizedDeletes.add(normalizeTestSweetName(name));
+        }
+        if(testSweets.isEmpty() && normalizedDeletes.isEmpty()) {
+            throw new AbTestException("No test sweet to update.");
+        }
+
+        if(clusterStateStore) {
+            final UpdateTestSweetRequest request = new UpdateTestSweetRequest();
+            testSweets.values().forEach(request::put);
+            normalizedDeletes.forEach(request::delete);
+            updateClusterState(request, success, error);
+            return;
+        }
+
+        final Consumer<Map<String, GetResponse>> write = currents -> {
+            final BulkRequestBuilder bulkRequest = client.prepareBulk();
+            try {
+                for(final TestSweet testSweet : testSweets.values()) {
+                    final GetResponse current = currents.get(testSweet.name);
+                    if(current != null && current.isExists()) {
+                        bulkRequest.add(createIndexRequest(TestSweet.publish(
+                            TestSweet.parse(testSweet.name, current.getSourceAsMap()), testSweet, historySize))
+                            .version(current.getVersion()));
+                    } else {
+                        bulkRequest.add(createIndexRequest(TestSweet.publish(null, testSweet, historySize))
+                            .opType(IndexRequest.OpType.CREATE));
+                    }
+                }
+                for(final String normalizedTestSweetName : normalizedDeletes) {
+                    bulkRequest.add(new DeleteRequest(TEST_SETTING_INDEX, normalizedTestSweetName, TEST_SWEET_ID));
+                }
+            } catch(final Exception e) {
+                error.accept(e);
+                return;
+            }
+            bulkRequest.execute(new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse bulkResponse) {
+                    normalizedDeletes.forEach(AbTestService.this::markAbsent);
+                    loadRoutingTables(testSweets.keySet(), () -> {});
+                    if(bulkResponse.hasFailures()) {
+                        error.accept(new AbTestException(bulkResponse.buildFailureMessage()));
+                        return;
+                    }
+                    if(normalizedDeletes.isEmpty()) {
+                        success.accept(true);
+                        return;
+                    }
+                    client.prepareDeleteByQuery(TEST_SETTING_INDEX)
+                        .setTypes(normalizedDeletes.toArray(new String[normalizedDeletes.size()]))
+                        .setQuery(QueryBuilders.matchAllQuery())
+                        .execute(new ActionListener<DeleteByQueryResponse>() {
+                            @Override
+                            public void onResponse(DeleteByQueryResponse deleteByQueryResponse) {
+                                success.accept(true);
+                            }
+
+                            @Override
+                            public void onFailure(Throwable throwable) {
+                                error.accept(throwable);
+                            }
+                        });
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    error.accept(e);
+                }
+            });
+        };
+        if(testSweets.isEmpty()) {
+            write.accept(Collections.emptyMap());
+            return;
+        }
+        final MultiGetRequestBuilder builder = client.prepareMultiGet().setRealtime(true);
+        for(final String normalizedTestSweetName : testSweets.keySet()) {
+            builder.add(TEST_SETTING_INDEX, normalizedTestSweetName, TEST_SWEET_ID);
+        }
+        builder.execute(new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse multiGetResponse) {
+                // a failed item, such as of a missing index, is created, which fails if it exists
+                final Map<String, GetResponse> currents = new HashMap<>();
+                for(final MultiGetItemResponse item : multiGetResponse) {
+                    if(!item.isFailed()) {
+                        currents.put(item.getType(), item.getResponse());
+                    }
+                }
+                write.accept(currents);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                error.accept(throwable);
+            }
+        });
+    }
+
+    /**
+     * Passes all test sweets to the consumer one by one, and then calls done.
+     * In the index store, documents are read page by page with a scroll, so test sweets are not held together.
+     * Test sweets which are only stored in the legacy format are not listed.
+     */
+    public void scanTestSweets(final Consumer<TestSweet> consumer, final Runnable done, final Consumer<Throwable> error) {
+        scanTestSweets(QueryBuilders.idsQuery().addIds(TEST_SWEET_ID), consumer, done, error);
+    }
+
+    /**
+     * Reads test sweets matching the query page by page with a scroll.
+     * Test sweets in the cluster state are not filtered by the query.
+     */
+    protected void scanTestSweets(final QueryBuilder query, final Consumer<TestSweet> consumer, final Runnable done,
+                                  final Consumer<Throwable> error) {
+        if(clusterStateStore) {
+            for(final TestSweet testSweet : AbTestMetaData.get(metaData()).testSweets()) {
+                consumer.accept(testSweet);
+            }
+            done.run();
+            return;
+        }
+
+        client.prepareSearch(TEST_SETTING_INDEX).setQuery(query)
+            .setScroll(TimeValue.timeValueMinutes(1)).setSize(SCAN_PAGE_SIZE)
+            .execute(new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(final SearchResponse response) {
+                    final SearchHit[] hits = response.getHits().getHits();
+                    if(hits.length == 0) {
+                        client.prepareClearScroll().addScrollId(response.getScrollId()).execute();
+                        done.run();
+                        return;
+                    }
+                    try {
+                        for(final SearchHit hit : hits) {
+                            consumer.accept(TestSweet.parse(hit.type(), hit.sourceAsMap()));
+                        }
+                    } catch(final Exception e) {
+                        client.prepareClearScroll().addScrollId(response.getScrollId()).execute();
+                        error.accept(e);
+                        return;
+                    }
+                    client.prepareSearchScroll(response.getScrollId())
+                        .setScroll(TimeValue.timeValueMinutes(1)).execute(this);
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    if(ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException) {
+                        done.run();
+                    } else {
+                        error.accept(t);
+                    }
+                }
+            });
+    }
+
+    public void getTestSweet(final String testSweetName, final Consumer<TestSweet> success, final Consumer<Throwable> error) {
+        final String normalizedTestSweetName = normalizeTestSweetName(testSweetName);
+        if(clusterStateStore) {
+            final TestSweet testSweet = AbTestMetaData.get(clusterService.state().metaData()).testSweet(normalizedTestSweetName);
+            success.accept(testSweet != null ? testSweet : TestSweet.builder(normalizedTestSweetName).build());
+            return;
+        }
+
+        loadTestSweet(normalizedTestSweetName, success, error);
+    }
+
+    protected void loadTestSweet(final String normalizedTestSweetName, final Consumer<TestSweet> success,
+                                 final Consumer<Throwable> error) {
+        loadTestSweets(Collections.singletonList(normalizedTestSweetName), testSweets -> {
+            final TestSweet testSweet = testSweets.get(normalizedTestSweetName);
+            success.accept(testSweet != null ? testSweet : TestSweet.builder(normalizedTestSweetName).build());
+        }, error);
+    }
+
+    /**
+     * Loads test sweets with one realtime multi-get.
+     * Test sweets without a compact document are read from the legacy format,
+     * which stores one document per test number, in one search.
+     */
+    protected void loadTestSweets(final Collection<String> normalizedTestSweetNames,
+                                  final Consumer<Map<String, TestSweet>> success, final Consumer<Throwable> error) {
+        final MultiGetRequestBuilder builder = client.prepareMultiGet();
+        for (final String normalizedTestSweetName : normalizedTestSweetNames) {
+            builder.add(TEST_SETTING_INDEX, normalizedTestSweetName, TEST_SWEET_ID);
+        }
+        builder.execute(new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse multiGetResponse) {
+                final Map<String, TestSweet> testSweets = new HashMap<>();
+                final List<String> legacyNames = new ArrayList<>();
+                try {
+                    for (final MultiGetItemResponse item : multiGetResponse) {
+                        if (item.isFailed() || !item.getResponse().isExists()) {
+                            legacyNames.add(item.getType());
+                        } else {
+                            testSweets.put(item.getType(), TestSweet.parse(item.getType(), item.getResponse().getSourceAsMap()));
+                        }
+                    }
+                } catch (final Exception e) {
+                    error.accept(e);
+                    return;
+                }
+                if (legacyNames.isEmpty()) {
+                    success.accept(testSweets);
+                    return;
+                }
+
+                searchTestSweets(legacyNames, hitsMap -> {
+                    for (final Map.Entry<String, List<SearchHit>> entry : hitsMap.entrySet()) {
+                        testSweets.put(entry.getKey(), TestSweet.builder(entry.getKey()).testCases(toTestCases(entry.getValue())).build());
+                    }
+                    success.accept(testSweets);
+                }, error);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                error.accept(throwable);
+            }
+        });
+    }
+
+    protected void deleteLegacyTestSweet(final String normalizedTestSweetName, final Consumer<Boolean> success,
+                                         final Consumer<Throwable> error) {
+        client.prepareDeleteByQuery(TEST_SETTING_INDEX).setTypes(normalizedTestSweetName)
+            .setQuery(QueryBuilders.matchAllQuery())
+            .execute(new ActionListener<DeleteByQueryResponse>() {
+                @Override
+                public void onResponse(DeleteByQueryResponse deleteByQueryResponse) {
                     success.accept(true);
                 }
 
@@ -168,34 +1377,128 @@ public class AbTestService extends AbstractLifecycleComponent<AbTestService> {
             });
     }
 
-    public void getTestSweet(final String testSweetName, final Consumer<List<TestCase>> success, final Consumer<Throwable> error) {
-        client.prepareSearch(TEST_SETTING_INDEX).setTypes(normalizeTestSweetName(testSweetName)).addSort(TestCase.FIELD_ID, SortOrder.ASC).setSize(MAX_TEST_NUMBER - MIN_TEST_NUMBER + 1)
+    /**
+     * Copies test sweets in .abtest index to the cluster state.
+     * Test sweets which already exist in the cluster state are not overwritten.
+     */
+    public void migrateTestSweets(final Consumer<Integer> success, final Consumer<Throwable> error) {
+        if(!clusterStateStore) {
+            error.accept(new AbTestException(SETTING_STORE_TYPE + " is not " + STORE_TYPE_CLUSTER_STATE + "."));
+            return;
+        }
+
+        final Map<String, TestSweet> testSweetMap = new LinkedHashMap<>();
+        final Map<String, List<SearchHit>> hitsMap = new LinkedHashMap<>();
+        client.prepareSearch(TEST_SETTING_INDEX).addSort(createTestIdSort())
+            .setScroll(TimeValue.timeValueMinutes(1)).setSize(TestSweet.DEFAULT_BUCKETS)
             .execute(new ActionListener<SearchResponse>() {
                 @Override
-                public void onResponse(SearchResponse response) {
-                    final List<TestCase> testCaseList = new ArrayList<>();
+                public void onResponse(final SearchResponse response) {
                     final SearchHit[] hits = response.getHits().getHits();
-                    if (hits.length > 0) {
-                        for (final SearchHit hit : hits) {
-                            final Map<String, Object> source = hit.sourceAsMap();
-                            final String testName = source.get(TestCase.FIELD_TEST_NAME).toString();
-                            final String testIndexName = source.get(TestCase.FIELD_TEST_INDEX).toString();
-
-                            boolean contain = false;
-                            for (final TestCase testCase : testCaseList) {
-                                if (testCase.testName.equals(testName)) {
-                                    testCase.percentage++;
-                                    contain = true;
-                                    break;
-                                }
+                    if(hits.length > 0) {
+                        for(final SearchHit hit : hits) {
+                            if(TEST_SWEET_ID.equals(hit.id())) {
+                                testSweetMap.put(hit.type(), TestSweet.parse(hit.type(), hit.sourceAsMap()));
+                                continue;
                             }
-                            if (!contain) {
-                                testCaseList.add(new TestCase(testName, testIndexName, 1));
+                            List<SearchHit> list = hitsMap.get(hit.type());
+                            if(list == null) {
+                                list = new ArrayList<>();
+                                hitsMap.put(hit.type(), list);
                             }
+                            list.add(hit);
+                        }
+                        client.prepareSearchScroll(response.getScrollId())
+                            .setScroll(TimeValue.timeValueMinutes(1)).execute(this);
+                        return;
+                    }
+
+                    final AbTestMetaData metaData = AbTestMetaData.get(clusterService.state().metaData());
+                    final UpdateTestSweetRequest request = new UpdateTestSweetRequest();
+                    for(final Map.Entry<String, List<SearchHit>> entry : hitsMap.entrySet()) {
+                        if(!testSweetMap.containsKey(entry.getKey())) {
+                            testSweetMap.put(entry.getKey(), TestSweet.builder(entry.getKey()).testCases(toTestCases(entry.getValue())).build());
                         }
                     }
+                    for(final TestSweet testSweet : testSweetMap.values()) {
+                        if(metaData.testSweet(testSweet.name) == null) {
+                            request.put(testSweet);
+                        }
+                    }
+                    if(request.puts().isEmpty()) {
+                        success.accept(0);
+                        return;
+                    }
+                    final int size = request.puts().size();
+                    updateClusterState(request, acknowledged -> success.accept(size), error);
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    if(ExceptionsHelper.unwrapCause(t) instanceof IndexMissingException) {
+                        success.accept(0);
+                    } else {
+                        error.accept(t);
+                    }
+                }
+            });
+    }
+
+    protected void updateClusterState(final UpdateTestSweetRequest request, final Consumer<Boolean> success,
+                                      final Consumer<Throwable> error) {
+        updateTestSweetAction.execute(request, new ActionListener<UpdateTestSweetResponse>() {
+            @Override
+            public void onResponse(final UpdateTestSweetResponse response) {
+                success.accept(response.isAcknowledged());
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                error.accept(t);
+            }
+        });
+    }
+
+    protected List<TestCase> toTestCases(final Iterable<SearchHit> hits) {
+        final List<TestCase> testCaseList = new ArrayList<>();
+        for (final SearchHit hit : hits) {
+            final Map<String, Object> source = hit.sourceAsMap();
+            final String testName = source.get(TestCase.FIELD_TEST_NAME).toString();
+            final String testIndexName = source.get(TestCase.FIELD_TEST_INDEX).toString();
 
-                    success.accept(testCaseList);
+            boolean contain = false;
+            for (final TestCase testCase : testCaseList) {
+                if (testCase.testName.equals(testName)) {
+                    testCase.percentage++;
+                    contain = true;
+                    break;
+                }
+            }
+            if (!contain) {
+                testCaseList.add(new TestCase(testName, testIndexName, 1));
+            }
+        }
+        return testCaseList;
+    }
+
+    protected void searchTestSweets(final List<String> normalizedTestSweetNames,
+                                    final Consumer<Map<String, List<SearchHit>>> success, final Consumer<Throwable> error) {
+        client.prepareSearch(TEST_SETTING_INDEX)
+            .setTypes(normalizedTestSweetNames.toArray(new String[normalizedTestSweetNames.size()]))
+            .addSort(createTestIdSort()).setSize(TestSweet.DEFAULT_BUCKETS * normalizedTestSweetNames.size())
+            .execute(new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(SearchResponse response) {
+                    final Map<String, List<SearchHit>> hitsMap = new HashMap<>();
+                    for (final SearchHit hit : response.getHits().getHits()) {
+                        List<SearchHit> hits = hitsMap.get(hit.type());
+                        if (hits == null) {
+                            hits = new ArrayList<>();
+                            hitsMap.put(hit.type(), hits);
+                        }
+                        hits.add(hit);
+                    }
+                    success.accept(hitsMap);
                 }
 
                 @Override
@@ -206,65 +1509,96 @@ public class AbTestService extends AbstractLifecycleComponent<AbTestService> {
     }
 
     protected boolean validateRt(final String rt) {
-        try {
-            int num = Integer.parseInt(rt);
-            if(num < MIN_TEST_NUMBER || MAX_TEST_NUMBER < num) {
-                return false;
+        return parseRt(rt) >= 0;
+    }
+
+    /**
+     * Parses rt as a bucket without allocating. Returns -1 if rt is not a valid bucket.
+     */
+    protected int parseRt(final String rt) {
+        if(rt == null || rt.isEmpty() || rt.length() > 9) {
+            return -1;
+        }
+        int num = 0;
+        for(int i = 0; i < rt.length(); i++) {
+            final char c = rt.charAt(i);
+            if(c < '0' || '9' < c) {
+                return -1;
             }
-        } catch (NumberFormatException e) {
-            return false;
+            num = num * 10 + (c - '0');
         }
-        return true;
+        return num;
     }
 
-    protected IndexRequest createIndexRequest(final String testSweetName, final TestCase testCase, final int id) {
+    protected IndexRequest createIndexRequest(final TestSweet testSweet) {
         final IndexRequest indexRequest = new IndexRequest();
-        return indexRequest.index(TEST_SETTING_INDEX).type(testSweetName).id(String.valueOf(id))
-            .source(testCase.source(id));
+        return indexRequest.index(TEST_SETTING_INDEX).type(testSweet.name).id(TEST_SWEET_ID)
+            .source(testSweet.source());
     }
 
-    protected DeleteRequest createDeleteRequest(final String testSweetName, final int id) {
-        final DeleteRequest deleteRequest = new DeleteRequest();
-        return deleteRequest.index(TEST_SETTING_INDEX).type(testSweetName).id(String.valueOf(id));
+    protected SortBuilder createTestIdSort() {
+        // test_id is not mapped if .abtest index has no legacy documents
+        return SortBuilders.fieldSort(TestCase.FIELD_ID).order(SortOrder.ASC).unmappedType("long");
     }
 
-    protected String normalizeTestSweetName(final String testSweet) {
-        return testSweet.replace(".", "_").toLowerCase();
+    public String normalizeTestSweetName(final String testSweet) {
+        return testSweet.replace('.', '_').toLowerCase(Locale.ROOT);
     }
 
 
-    protected void createSettingIndexIfNothing() throws IOException {
-        final IndicesExistsResponse response =
-            client.admin().indices().prepareExists(TEST_SETTING_INDEX).execute().actionGet(1, TimeUnit.MINUTES);
-        if(!response.isExists()) {
-            BufferedReader br = null;
-            final StringBuilder sb = new StringBuilder();
-            try {
-                br =
-                    new BufferedReader(new InputStreamReader(this.getClass().getClassLoader()
-                        .getResourceAsStream("test-index-mapping.json")));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    sb.append(line);
-                }
-            } finally {
-                if (br != null) {
-                    br.close();
-                }
-            }
-            client.admin().indices().prepareCreate(TEST_SETTING_INDEX)
-                .addMapping(sb.toString()).execute(new ActionListener<CreateIndexResponse>() {
-                    @Override
-                    public void onResponse(final CreateIndexResponse response) {
-                        //ignore
-                    }
+    /**
+     * Creates .abtest index with its mapping if it does not exist, and then runs the callback even if it fails.
+     */
+    protected void createSettingIndexIfNothing(final Runnable callback) {
+        client.admin().indices().prepareExists(TEST_SETTING_INDEX).execute(new ActionListener<IndicesExistsResponse>() {
+            @Override
+            public void onResponse(final IndicesExistsResponse response) {
+                if (response.isExists()) {
+                    callback.run();
+                    return;
+                }
+                final String mapping;
+                try {
+                    mapping = readMapping();
+                } catch (final IOException e) {
+                    onFailure(e);
+                    return;
+                }
+                client.admin().indices().prepareCreate(TEST_SETTING_INDEX)
+                    .setSource(mapping).execute(new ActionListener<CreateIndexResponse>() {
+                        @Override
+                        public void onResponse(final CreateIndexResponse response) {
+                            callback.run();
+                        }
 
-                    @Override
-                    public void onFailure(final Throwable t) {
-                        logger.error("Failed to create test settings index.");
-                    }
-            });
+                        @Override
+                        public void onFailure(final Throwable t) {
+                            if (!(ExceptionsHelper.unwrapCause(t) instanceof IndexAlreadyExistsException)) {
+                                logger.error("Failed to create test settings index.", t);
+                            }
+                            callback.run();
+                        }
+                    });
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                logger.error("Failed to check test settings index.", t);
+                callback.run();
+            }
+        });
+    }
+
+    protected String readMapping() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                this.getClass().getClassLoader().getResourceAsStream("test-index-mapping.json"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+            }
         }
+        return sb.toString();
     }
 
 
@@ -272,30 +1606,156 @@ public class AbTestService extends AbstractLifecycleComponent<AbTestService> {
         public static final String FIELD_TEST_NAME = "test_name";
         public static final String FIELD_TEST_INDEX = "index";
         public static final String FIELD_PERCENTAGE = "percentage";
+        public static final String FIELD_FROM = "from";
+        public static final String FIELD_TO = "to";
         public static final String FIELD_ID = "test_id";
+        public static final String FIELD_TYPE = "type";
+
+        // requests are routed to the test index
+        public static final String TYPE_SPLIT = "split";
+        // requests search the original and test indices in parallel and their hits are interleaved
+        public static final String TYPE_INTERLEAVE = "interleave";
+        // requests are served by the original index and copies are sent to the test index
+        public static final String TYPE_SHADOW = "shadow";
+        public static final String FIELD_SAMPLE_RATE = "sample_rate";
+        public static final String FIELD_RAMP = "ramp";
+        public static final String FIELD_PARAMS = "params";
+        public static final String FIELD_RAMP_AT = "at";
+
+        private static final long[] NO_RAMP_TIMES = new long[0];
+        private static final double[] NO_RAMP_PERCENTAGES = new double[0];
 
         public String testName;
         public String testIndexName;
-        public int percentage;
+        public double percentage;
+        // bucket range [from, to), assigned by TestSweet if not set
+        public int from = -1;
+        public int to = -1;
+        public String type = TYPE_SPLIT;
+        // fraction of shadow requests which are copied
+        public double sampleRate = 1.0;
+        // ramp steps sorted by time; the active range grows from "from" within [from, to)
+        public long[] rampTimes = NO_RAMP_TIMES;
+        public double[] rampPercentages = NO_RAMP_PERCENTAGES;
+        // search parameters applied to requests searching the test index, null if none
+        public SearchOverlay overlay;
 
         private TestCase() {
 
         }
 
-        public TestCase(final String testName, final String testIndexName, final int percentage) {
+        public TestCase(final String testName, final String testIndexName, final double percentage) {
             this.testName = testName;
             this.testIndexName = testIndexName;
             this.percentage = percentage;
         }
 
-        public Map<String, Object> source(final int id) {
+        public Map<String, Object> source() {
             final Map<String, Object> source = new HashMap<>();
             source.put(FIELD_TEST_NAME, testName);
             source.put(FIELD_TEST_INDEX, testIndexName);
-            source.put(FIELD_ID, id);
+            source.put(FIELD_PERCENTAGE, percentageValue());
+            source.put(FIELD_FROM, from);
+            source.put(FIELD_TO, to);
+            if (!TYPE_SPLIT.equals(type)) {
+                source.put(FIELD_TYPE, type);
+            }
+            if (TYPE_SHADOW.equals(type)) {
+                source.put(FIELD_SAMPLE_RATE, sampleRate);
+            }
+            if (overlay != null) {
+                source.put(FIELD_PARAMS, overlay.source());
+            }
+            if (rampTimes.length > 0) {
+                final List<Map<String, Object>> ramp = new ArrayList<>(rampTimes.length);
+                for (int i = 0; i < rampTimes.length; i++) {
+                    final Map<String, Object> step = new HashMap<>();
+                    step.put(FIELD_RAMP_AT, rampTimes[i]);
+                    step.put(FIELD_PERCENTAGE, rampPercentages[i]);
+                    ramp.add(step);
+                }
+                source.put(FIELD_RAMP, ramp);
+            }
             return source;
         }
 
+        /**
+         * Returns the number of buckets routed to this test case at the time.
+         * Without ramp steps, it is the whole range. Before the first step, it is 0.
+         */
+        public int activeBucketSize(final int buckets, final long now) {
+            if (rampTimes.length == 0) {
+                return to - from;
+            }
+            int size = 0;
+            for (int i = 0; i < rampTimes.length && rampTimes[i] <= now; i++) {
+                size = bucketSize(buckets, rampPercentages[i]);
+            }
+            return size;
+        }
+
+        /**
+         * Returns the time of the first ramp step after now, or Long.MAX_VALUE if none.
+         */
+        public long nextRampTime(final long now) {
+            for (final long time : rampTimes) {
+                if (time > now) {
+                    return time;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Returns the percentage as an integer if it has no fraction.
+         */
+        public Number percentageValue() {
+            if (percentage == Math.rint(percentage) && Math.abs(percentage) < Integer.MAX_VALUE) {
+                return (int) percentage;
+            }
+            return percentage;
+        }
+
+        /**
+         * Returns a copy of this test case. Ramp steps and the overlay are shared, since they are not modified.
+         */
+        public TestCase copy() {
+            final TestCase testCase = new TestCase(testName, testIndexName, percentage);
+            testCase.from = from;
+            testCase.to = to;
+            testCase.type = type;
+            testCase.sampleRate = sampleRate;
+            testCase.rampTimes = rampTimes;
+            testCase.rampPercentages = rampPercentages;
+            testCase.overlay = overlay;
+            return testCase;
+        }
+
+        /**
+         * Returns a copy with the percentage, whose bucket range is assigned again.
+         */
+        public TestCase copy(final double percentage) {
+            final TestCase testCase = copy();
+            testCase.percentage = percentage;
+            testCase.from = -1;
+            testCase.to = -1;
+            return testCase;
+        }
+
+        public int bucketSize(final int buckets) {
+            return bucketSize(buckets, percentage);
+        }
+
+        public int bucketSize(final int buckets, final double percentage) {
+            final double size = percentage * buckets / 100;
+            final long rounded = Math.round(size);
+            if (percentage < 0 || Math.abs(size - rounded) > 1e-6) {
+                throw new IllegalArgumentException("percentage " + percentage + " of " + testName
+                    + " cannot be allocated in " + buckets + " buckets.");
+            }
+            return (int) rounded;
+        }
+
         public static TestCase parse(final Map<String, Object> testSweet) {
             final TestCase instance = new TestCase();
 
@@ -315,10 +1775,95 @@ public class AbTestService extends AbstractLifecycleComponent<AbTestService> {
             if(percentageObj == null) {
                 throw new IllegalArgumentException("percentage was null");
             }
-            instance.percentage = Integer.parseInt(percentageObj.toString());
+            instance.percentage = Double.parseDouble(percentageObj.toString());
+
+            final Object fromObj = testSweet.get(FIELD_FROM);
+            final Object toObj = testSweet.get(FIELD_TO);
+            if(fromObj != null && toObj != null) {
+                instance.from = Integer.parseInt(fromObj.toString());
+                instance.to = Integer.parseInt(toObj.toString());
+            }
+
+            final Object typeObj = testSweet.get(FIELD_TYPE);
+            if(typeObj != null) {
+                final String type = typeObj.toString();
+                if(!TYPE_SPLIT.equals(type) && !TYPE_INTERLEAVE.equals(type) && !TYPE_SHADOW.equals(type)) {
+                    throw new IllegalArgumentException("Unknown type of " + instance.testName + ": " + type);
+                }
+                instance.type = type;
+            }
+
+            final Object sampleRateObj = testSweet.get(FIELD_SAMPLE_RATE);
+            if(sampleRateObj != null) {
+                instance.sampleRate = Double.parseDouble(sampleRateObj.toString());
+                if(instance.sampleRate < 0 || 1 < instance.sampleRate) {
+                    throw new IllegalArgumentException("sample_rate of " + instance.testName + " must be between 0 and 1.");
+                }
+            }
+
+            final Object paramsObj = testSweet.get(FIELD_PARAMS);
+            if(paramsObj instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final SearchOverlay overlay = SearchOverlay.parse((Map<String, Object>) paramsObj);
+                instance.overlay = overlay;
+            } else if(paramsObj != null) {
+                throw new IllegalArgumentException("params of " + instance.testName + " must be an object.");
+            }
+
+            final Object rampObj = testSweet.get(FIELD_RAMP);
+            if(rampObj instanceof List) {
+                parseRamp(instance, (List<?>) rampObj);
+            } else if(rampObj != null) {
+                throw new IllegalArgumentException("ramp of " + instance.testName + " must be an array.");
+            }
 
             return instance;
         }
+
+        private static void parseRamp(final TestCase instance, final List<?> ramp) {
+            final int size = ramp.size();
+            instance.rampTimes = new long[size];
+            instance.rampPercentages = new double[size];
+            for (int i = 0; i < size; i++) {
+                if (!(ramp.get(i) instanceof Map)) {
+                    throw new IllegalArgumentException("ramp of " + instance.testName + " must contain objects.");
+                }
+                final Map<?, ?> step = (Map<?, ?>) ramp.get(i);
+                final Object atObj = step.get(FIELD_RAMP_AT);
+                final Object percentageObj = step.get(FIELD_PERCENTAGE);
+                if (atObj == null || percentageObj == null) {
+                    throw new IllegalArgumentException("ramp of " + instance.testName + " needs at and percentage.");
+                }
+                instance.rampTimes[i] = parseTime(atObj);
+                instance.rampPercentages[i] = Double.parseDouble(percentageObj.toString());
+                if (i > 0 && instance.rampTimes[i] <= instance.rampTimes[i - 1]) {
+                    throw new IllegalArgumentException("ramp of " + instance.testName + " must be sorted by at.");
+                }
+                if (instance.rampPercentages[i] < 0 || instance.percentage < instance.rampPercentages[i]) {
+                    throw new IllegalArgumentException("ramp percentage of " + instance.testName
+                        + " must be between 0 and its percentage.");
+                }
+            }
+        }
+
+        /**
+         * Parses epoch milliseconds or an ISO-8601 date time such as 2016-01-01T00:00:00Z.
+         */
+        private static long parseTime(final Object value) {
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            final String str = value.toString();
+            try {
+                return Long.parseLong(str);
+            } catch (final NumberFormatException e) {
+                try {
+                    return OffsetDateTime.parse(str).toInstant().toEpochMilli();
+                } catch (final DateTimeParseException e2) {
+                    throw new IllegalArgumentException("Invalid ramp time: " + str);
+                }
+            }
+        }
     }
 
 }
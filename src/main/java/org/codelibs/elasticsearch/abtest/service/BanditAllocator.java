@@ -0,0 +1,186 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import org.codelibs.elasticsearch.abtest.action.AbTestStatsRequest;
+import org.codelibs.elasticsearch.abtest.action.AbTestStatsResponse;
+import org.codelibs.elasticsearch.abtest.action.TransportAbTestStatsAction;
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+import org.codelibs.elasticsearch.abtest.stats.TestCaseStats;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Reallocates buckets of test sweets with Thompson sampling allocation on the master node.
+ * Served counts and rewards are collected from all nodes by the stats action,
+ * and a new allocation is published as a new version of the test sweet,
+ * so routing stays deterministic per ab_rt until the next reallocation.
+ * Served counts and rewards are cumulative on each node and are not persisted,
+ * so they drop when a node restarts; then min_trials more trials are required before the next reallocation.
+ */
+public class BanditAllocator extends AbstractLifecycleComponent<BanditAllocator> {
+    public static final String SETTING_INTERVAL = "abtest.bandit.interval";
+    public static final String SETTING_MIN_SHARE = "abtest.bandit.min_share";
+    public static final String SETTING_MIN_TRIALS = "abtest.bandit.min_trials";
+
+    private static final int DRAWS = 10000;
+
+    protected final ThreadPool threadPool;
+
+    protected final ClusterService clusterService;
+
+    protected final AbTestService service;
+
+    protected final TransportAbTestStatsAction statsAction;
+
+    protected final TimeValue interval;
+
+    // minimum share of buckets of each test case, to keep exploring
+    protected final double minShare;
+
+    // total served count of a test sweet needed before its first reallocation
+    protected final long minTrials;
+
+    protected volatile ScheduledFuture<?> future;
+
+    // test sweet name -> total trials seen at the last reallocation check
+    protected final Map<String, Long> lastTrials = ConcurrentCollections.newConcurrentMap();
+
+    // test sweet name -> total trials needed before the next reallocation, raised when the counts drop
+    protected final Map<String, Long> requiredTrials = ConcurrentCollections.newConcurrentMap();
+
+    @Inject
+    public BanditAllocator(final Settings settings, final ThreadPool threadPool, final ClusterService clusterService,
+            final AbTestService service, final TransportAbTestStatsAction statsAction) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.clusterService = clusterService;
+        this.service = service;
+        this.statsAction = statsAction;
+        this.interval = settings.getAsTime(SETTING_INTERVAL, TimeValue.timeValueMinutes(1));
+        this.minShare = settings.getAsDouble(SETTING_MIN_SHARE, 0.05);
+        this.minTrials = settings.getAsLong(SETTING_MIN_TRIALS, 100L);
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        if (interval.millis() > 0) {
+            future = threadPool.scheduleWithFixedDelay(this::reallocate, interval);
+        }
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    protected void reallocate() {
+        if (!clusterService.state().nodes().localNodeMaster()) {
+            return;
+        }
+
+        service.banditTestSweets(testSweets -> {
+            final String[] names = new String[testSweets.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = testSweets.get(i).name;
+            }
+            lastTrials.keySet().retainAll(Arrays.asList(names));
+            requiredTrials.keySet().retainAll(Arrays.asList(names));
+            if (testSweets.isEmpty()) {
+                return;
+            }
+            statsAction.execute(new AbTestStatsRequest().testSweets(names), new ActionListener<AbTestStatsResponse>() {
+                @Override
+                public void onResponse(final AbTestStatsResponse response) {
+                    final Map<String, Map<String, TestCaseStats>> stats = response.getTestSweets();
+                    for (final TestSweet testSweet : testSweets) {
+                        final Map<String, TestCaseStats> testCaseStats = stats.get(testSweet.name);
+                        if (testCaseStats != null) {
+                            reallocate(testSweet, testCaseStats);
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    logger.warn("Failed to collect stats for bandit allocation.", t);
+                }
+            });
+        }, t -> logger.warn("Failed to load test sweets for bandit allocation.", t));
+    }
+
+    protected void reallocate(final TestSweet testSweet, final Map<String, TestCaseStats> testCaseStats) {
+        final int arms = testSweet.testCases.size();
+        if (arms < 2) {
+            return;
+        }
+        final long[] trials = new long[arms];
+        final long[] rewards = new long[arms];
+        final int[] currentSizes = new int[arms];
+        long totalTrials = 0;
+        int total = 0;
+        for (int i = 0; i < arms; i++) {
+            final TestCase testCase = testSweet.testCases.get(i);
+            final TestCaseStats stats = testCaseStats.get(testCase.testName);
+            if (stats != null) {
+                trials[i] = stats.getCount() - stats.getFailures();
+                rewards[i] = stats.getRewards();
+                totalTrials += trials[i];
+            }
+            currentSizes[i] = testCase.to - testCase.from;
+            total += currentSizes[i];
+        }
+        if (!hasEnoughTrials(testSweet.name, totalTrials)) {
+            return;
+        }
+
+        final double[] probabilities = ThompsonSampling.winProbabilities(trials, rewards, DRAWS,
+            31L * testSweet.name.hashCode() + testSweet.latestVersion());
+        final int[] sizes = ThompsonSampling.allocate(probabilities, total, (int) Math.ceil(total * minShare));
+        final Map<String, Integer> bucketSizes = new HashMap<>();
+        boolean changed = false;
+        for (int i = 0; i < arms; i++) {
+            bucketSizes.put(testSweet.testCases.get(i).testName, sizes[i]);
+            changed |= sizes[i] != currentSizes[i];
+        }
+        if (!changed) {
+            return;
+        }
+
+        service.reallocateTestSweet(testSweet.name, testSweet.version, bucketSizes,
+            acknowledged -> logger.info("Reallocated {}: {}", testSweet.name, bucketSizes),
+            t -> logger.warn("Failed to reallocate {}.", t, testSweet.name));
+    }
+
+    /**
+     * Returns true if the test sweet has min_trials trials, counted again from the last drop of the counts.
+     * The counts drop when a node holding some of them restarts, since they are kept only in memory.
+     */
+    protected boolean hasEnoughTrials(final String testSweetName, final long totalTrials) {
+        final Long last = lastTrials.put(testSweetName, totalTrials);
+        if (last != null && totalTrials < last) {
+            logger.info("Trials of {} dropped from {} to {}, waiting for {} more trials.", testSweetName, last,
+                totalTrials, minTrials);
+            requiredTrials.put(testSweetName, totalTrials + minTrials);
+        }
+        final Long required = requiredTrials.get(testSweetName);
+        return totalTrials >= (required != null ? required : minTrials);
+    }
+}
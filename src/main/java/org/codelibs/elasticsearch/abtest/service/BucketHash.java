@@ -0,0 +1,63 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+/**
+ * MurmurHash3 (x86, 32-bit) over the chars of ab_rt.
+ * Two chars are packed into each 32-bit block, so no byte array or string is allocated.
+ */
+public final class BucketHash {
+    private static final int C1 = 0xcc9e2d51;
+
+    private static final int C2 = 0x1b873593;
+
+    private BucketHash() {
+    }
+
+    public static int hash(final CharSequence value, final int seed) {
+        final int length = value.length();
+        int h1 = seed;
+
+        int i = 1;
+        for (; i < length; i += 2) {
+            final int k1 = value.charAt(i - 1) | (value.charAt(i) << 16);
+            h1 = mixH1(h1, mixK1(k1));
+        }
+
+        if ((length & 1) == 1) {
+            h1 ^= mixK1(value.charAt(length - 1));
+        }
+
+        return fmix(h1, 2 * length);
+    }
+
+    /**
+     * Maps ab_rt to a bucket in [0, buckets).
+     */
+    public static int bucket(final CharSequence value, final int seed, final int buckets) {
+        // multiply-shift range reduction: unbiased for 32-bit hashes and never negative
+        return (int) (((hash(value, seed) & 0xffffffffL) * buckets) >>> 32);
+    }
+
+    private static int mixK1(int k1) {
+        k1 *= C1;
+        k1 = Integer.rotateLeft(k1, 15);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static int mixH1(int h1, final int k1) {
+        h1 ^= k1;
+        h1 = Integer.rotateLeft(h1, 13);
+        h1 = h1 * 5 + 0xe6546b64;
+        return h1;
+    }
+
+    private static int fmix(int h1, final int length) {
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+}
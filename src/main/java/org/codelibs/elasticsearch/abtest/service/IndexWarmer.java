@@ -0,0 +1,86 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Runs warm-up queries of a test sweet against test indices before they go live,
+ * so their caches are warm when they get traffic.
+ */
+public class IndexWarmer extends AbstractComponent {
+    public static final String SETTING_TIMEOUT = "abtest.warmup.timeout";
+
+    protected final Client client;
+
+    protected final ThreadPool threadPool;
+
+    // how long a routing table waits for its warm-up queries
+    protected final TimeValue timeout;
+
+    @Inject
+    public IndexWarmer(final Settings settings, final Client client, final ThreadPool threadPool) {
+        super(settings);
+        this.client = client;
+        this.threadPool = threadPool;
+        this.timeout = settings.getAsTime(SETTING_TIMEOUT, TimeValue.timeValueSeconds(30));
+    }
+
+    /**
+     * Runs the warm-up queries against the indices, and then the callback even if some of them fail or time out.
+     */
+    public void warmUp(final String testSweetName, final List<Map<String, Object>> queries, final Set<String> indices,
+                       final Runnable callback) {
+        logger.info("Warming up {} of {}.", indices, testSweetName);
+        final AtomicBoolean done = new AtomicBoolean();
+        final Runnable finish = () -> {
+            if (done.compareAndSet(false, true)) {
+                callback.run();
+            }
+        };
+        final ScheduledFuture<?> timeoutFuture = threadPool.schedule(timeout, ThreadPool.Names.GENERIC, () -> {
+            if (!done.get()) {
+                logger.warn("Warming up {} of {} did not complete in {}.", indices, testSweetName, timeout);
+            }
+            finish.run();
+        });
+        final AtomicInteger remaining = new AtomicInteger(queries.size() * indices.size());
+        final ActionListener<SearchResponse> listener = new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(final SearchResponse response) {
+                countDown();
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                logger.warn("Failed to warm up {} of {}.", t, indices, testSweetName);
+                countDown();
+            }
+
+            private void countDown() {
+                if (remaining.decrementAndGet() == 0) {
+                    timeoutFuture.cancel(false);
+                    finish.run();
+                }
+            }
+        };
+        for (final String index : indices) {
+            for (final Map<String, Object> query : queries) {
+                client.search(new SearchRequest(index).source(query), listener);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Executes searches of interleave test cases.
+ * The control and candidate indices are searched in parallel,
+ * and their hits are merged by {@link InterleavedSearchResponses}.
+ */
+public class InterleavedSearch extends AbstractComponent {
+    protected final Client client;
+
+    @Inject
+    public InterleavedSearch(final Settings settings, final Client client, final ActionFilters actionFilters) {
+        super(settings);
+        this.client = client;
+
+        for(final ActionFilter filter: actionFilters.filters()) {
+            if(filter instanceof AbTestSearchActionFilter) {
+                ((AbTestSearchActionFilter) filter).injectInterleavedSearch(this);
+            }
+        }
+    }
+
+    /**
+     * Searches the control and candidate indices in parallel and responds with their hits interleaved.
+     * Added latency is the slower of the two searches.
+     * If the candidate search fails, the control response is returned as it is.
+     */
+    public void execute(final SearchRequest searchRequest, final String controlIndex, final String candidateIndex,
+                        final SearchOverlay candidateOverlay, final String rt,
+                        final ActionListener<SearchResponse> listener) {
+        final long startTime = System.currentTimeMillis();
+        final SearchRequest controlRequest = new SearchRequest(searchRequest, searchRequest).indices(controlIndex);
+        final SearchRequest candidateRequest = new SearchRequest(searchRequest, searchRequest).indices(candidateIndex);
+        if (candidateOverlay != null) {
+            candidateOverlay.apply(candidateRequest);
+        }
+        // SearchResponse or Throwable of control and candidate
+        final AtomicReferenceArray<Object> results = new AtomicReferenceArray<>(2);
+        final AtomicInteger remaining = new AtomicInteger(2);
+        final Runnable merge = () -> {
+            final Object control = results.get(0);
+            final Object candidate = results.get(1);
+            if (control instanceof Throwable) {
+                listener.onFailure((Throwable) control);
+                return;
+            }
+            if (candidate instanceof Throwable) {
+                logger.warn("Failed to search {} for interleaving.", (Throwable) candidate, candidateIndex);
+                listener.onResponse((SearchResponse) control);
+                return;
+            }
+            final SearchResponse response;
+            try {
+                response = InterleavedSearchResponses.merge((SearchResponse) control, (SearchResponse) candidate,
+                    BucketHash.hash(rt, 0), System.currentTimeMillis() - startTime);
+            } catch (final Exception e) {
+                logger.warn("Failed to interleave hits of {} and {}.", e, controlIndex, candidateIndex);
+                listener.onResponse((SearchResponse) control);
+                return;
+            }
+            listener.onResponse(response);
+        };
+        for (final SearchRequest request : new SearchRequest[] { controlRequest, candidateRequest }) {
+            final int pos = request == controlRequest ? 0 : 1;
+            client.search(request, new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(final SearchResponse response) {
+                    results.set(pos, response);
+                    if (remaining.decrementAndGet() == 0) {
+                        merge.run();
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    results.set(pos, e);
+                    if (remaining.decrementAndGet() == 0) {
+                        merge.run();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.facet.InternalFacets;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+
+/**
+ * Merges responses of the original (control) and test (candidate) indices by team-draft interleaving.
+ * Each hit has its team in "_abtest_team" field.
+ * Total hits, aggregations, facets and suggestions are taken from the control response.
+ */
+public final class InterleavedSearchResponses {
+    public static final String FIELD_TEAM = "_abtest_team";
+
+    public static final String TEAM_CONTROL = "control";
+
+    public static final String TEAM_CANDIDATE = "candidate";
+
+    private InterleavedSearchResponses() {
+    }
+
+    public static SearchResponse merge(final SearchResponse control, final SearchResponse candidate, final long seed,
+            final long tookInMillis) {
+        final SearchHit[] controlHits = control.getHits().getHits();
+        final SearchHit[] candidateHits = candidate.getHits().getHits();
+        final int[] picks = TeamDraftInterleaving.interleave(keys(controlHits), keys(candidateHits), seed);
+
+        final InternalSearchHit[] hits = new InternalSearchHit[picks.length];
+        for (int i = 0; i < picks.length; i++) {
+            final int pick = picks[i];
+            if (pick > 0) {
+                hits[i] = team((InternalSearchHit) controlHits[pick - 1], TEAM_CONTROL);
+            } else {
+                hits[i] = team((InternalSearchHit) candidateHits[-pick - 1], TEAM_CANDIDATE);
+            }
+        }
+
+        final InternalSearchHits searchHits =
+            new InternalSearchHits(hits, control.getHits().getTotalHits(), control.getHits().getMaxScore());
+        final InternalSearchResponse internalResponse = new InternalSearchResponse(searchHits,
+            (InternalFacets) control.getFacets(), (InternalAggregations) control.getAggregations(), control.getSuggest(),
+            control.isTimedOut() || candidate.isTimedOut(), control.isTerminatedEarly());
+        return new SearchResponse(internalResponse, null, control.getTotalShards() + candidate.getTotalShards(),
+            control.getSuccessfulShards() + candidate.getSuccessfulShards(), tookInMillis,
+            concat(control.getShardFailures(), candidate.getShardFailures()));
+    }
+
+    /**
+     * Returns type and id of hits, so the same document in both indices is picked once.
+     */
+    private static String[] keys(final SearchHit[] hits) {
+        final String[] keys = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            keys[i] = hits[i].getType() + '#' + hits[i].getId();
+        }
+        return keys;
+    }
+
+    private static InternalSearchHit team(final InternalSearchHit hit, final String team) {
+        final Map<String, SearchHitField> fields = new HashMap<>(hit.fields());
+        fields.put(FIELD_TEAM, new InternalSearchHitField(FIELD_TEAM, Collections.<Object> singletonList(team)));
+        hit.fields(fields);
+        return hit;
+    }
+
+    private static ShardSearchFailure[] concat(final ShardSearchFailure[] failures1, final ShardSearchFailure[] failures2) {
+        if (failures2.length == 0) {
+            return failures1;
+        }
+        if (failures1.length == 0) {
+            return failures2;
+        }
+        final ShardSearchFailure[] failures = new ShardSearchFailure[failures1.length + failures2.length];
+        System.arraycopy(failures1, 0, failures, 0, failures1.length);
+        System.arraycopy(failures2, 0, failures, failures1.length, failures2.length);
+        return failures;
+    }
+}
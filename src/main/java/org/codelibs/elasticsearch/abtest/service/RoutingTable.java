@@ -0,0 +1,212 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+import org.codelibs.elasticsearch.abtest.stats.AbTestStats;
+
+/**
+ * Immutable bucket-to-variant table of a test sweet.
+ * A new instance is built and swapped whenever the test sweet is (re)loaded
+ * or one of its ramp steps comes.
+ * A ramping test case is routed the beginning of its reserved range, so a step only moves
+ * the buckets between the old and the new end.
+ * Buckets are resolved by a binary search over the sorted bucket ranges,
+ * so the size does not depend on the number of buckets.
+ * Layers of the test sweet are compiled into tables of their own, which are selected together with this one.
+ */
+public class RoutingTable {
+    // declared before EMPTY, which is built with it
+    private static final RoutingTable[] NO_LAYERS = new RoutingTable[0];
+
+    public static final RoutingTable EMPTY =
+        new RoutingTable(null, 0, 0, new int[0], new int[0], new Variant[0], Variant.NONE, 0L, Long.MAX_VALUE);
+
+    // separates the layer name from the test name in variants of a layer
+    public static final char LAYER_SEPARATOR = ':';
+
+    private final TestSweet testSweet;
+
+    private final int buckets;
+
+    private final int salt;
+
+    // sorted by start
+    private final int[] starts;
+
+    private final int[] ends;
+
+    private final Variant[] variants;
+
+    private final Variant defaultVariant;
+
+    private final long loadedTime;
+
+    private final long nextRampTime;
+
+    // in order of precedence
+    private final RoutingTable[] layers;
+
+    public RoutingTable(final TestSweet testSweet, final int buckets, final int salt, final int[] starts, final int[] ends,
+            final Variant[] variants, final Variant defaultVariant, final long loadedTime, final long nextRampTime) {
+        this(testSweet, buckets, salt, starts, ends, variants, defaultVariant, loadedTime, nextRampTime, NO_LAYERS);
+    }
+
+    public RoutingTable(final TestSweet testSweet, final int buckets, final int salt, final int[] starts, final int[] ends,
+            final Variant[] variants, final Variant defaultVariant, final long loadedTime, final long nextRampTime,
+            final RoutingTable[] layers) {
+        this.testSweet = testSweet;
+        this.buckets = buckets;
+        this.salt = salt;
+        this.starts = starts;
+        this.ends = ends;
+        this.variants = variants;
+        this.defaultVariant = defaultVariant;
+        this.loadedTime = loadedTime;
+        this.nextRampTime = nextRampTime;
+        this.layers = layers;
+    }
+
+    /**
+     * Returns the index for the bucket, or null if the bucket is not assigned.
+     */
+    public String route(final int bucket) {
+        final Variant variant = select(bucket);
+        return variant.isDefault() ? null : variant.testCase.testIndexName;
+    }
+
+    /**
+     * Returns the variant for the bucket, or the default variant if the bucket is not assigned.
+     */
+    public Variant select(final int bucket) {
+        if (bucket < 0 || buckets <= bucket) {
+            return defaultVariant;
+        }
+        int pos = Arrays.binarySearch(starts, bucket);
+        if (pos < 0) {
+            pos = -pos - 2;
+            if (pos < 0) {
+                return defaultVariant;
+            }
+        }
+        return bucket < ends[pos] ? variants[pos] : defaultVariant;
+    }
+
+    public Variant defaultVariant() {
+        return defaultVariant;
+    }
+
+    public int buckets() {
+        return buckets;
+    }
+
+    public int salt() {
+        return salt;
+    }
+
+    public boolean isEmpty() {
+        return variants.length == 0 && layers.length == 0;
+    }
+
+    public RoutingTable[] layers() {
+        return layers;
+    }
+
+    /**
+     * Returns the test indices which receive searches through this table and its layers.
+     */
+    public Set<String> liveIndices() {
+        final Set<String> indices = new HashSet<>();
+        for (final Variant variant : variants) {
+            indices.add(variant.testCase.testIndexName);
+        }
+        for (final RoutingTable layer : layers) {
+            indices.addAll(layer.liveIndices());
+        }
+        return indices;
+    }
+
+    public long loadedTime() {
+        return loadedTime;
+    }
+
+    /**
+     * Returns the compiled targeting rules of the test sweet, which are not applied to layers.
+     */
+    public Targeting targeting() {
+        return testSweet != null ? testSweet.targeting : Targeting.ALL;
+    }
+
+    /**
+     * Returns the test sweet which this table is built from, or null for EMPTY.
+     */
+    public TestSweet testSweet() {
+        return testSweet;
+    }
+
+    /**
+     * Returns the time when this table should be rebuilt for a ramp step, or Long.MAX_VALUE if never.
+     */
+    public long nextRampTime() {
+        return nextRampTime;
+    }
+
+    public static RoutingTable build(final TestSweet testSweet, final long loadedTime) {
+        return build(testSweet, loadedTime, null);
+    }
+
+    /**
+     * Builds a routing table at the loaded time, whose variants record into metrics of the stats, if not null.
+     */
+    public static RoutingTable build(final TestSweet testSweet, final long loadedTime, final AbTestStats stats) {
+        final RoutingTable[] layers = testSweet.layers.isEmpty() ? NO_LAYERS : new RoutingTable[testSweet.layers.size()];
+        long nextRampTime = Long.MAX_VALUE;
+        for (int i = 0; i < layers.length; i++) {
+            final TestSweet layer = testSweet.layers.get(i);
+            layers[i] = build(layer, testSweet.name, layer.name + LAYER_SEPARATOR, loadedTime, stats, NO_LAYERS,
+                Long.MAX_VALUE);
+            nextRampTime = Math.min(nextRampTime, layers[i].nextRampTime);
+        }
+        return build(testSweet, testSweet.name, "", loadedTime, stats, layers, nextRampTime);
+    }
+
+    /**
+     * Builds a table whose variants belong to the test sweet of the name and have the prefix in their test names.
+     */
+    private static RoutingTable build(final TestSweet testSweet, final String testSweetName, final String prefix,
+            final long loadedTime, final AbTestStats stats, final RoutingTable[] layers, long nextRampTime) {
+        final List<TestCase> testCases = new ArrayList<>();
+        for (final TestCase testCase : testSweet.testCases) {
+            if (testCase.activeBucketSize(testSweet.buckets, loadedTime) > 0) {
+                testCases.add(testCase);
+            }
+            nextRampTime = Math.min(nextRampTime, testCase.nextRampTime(loadedTime));
+        }
+        testCases.sort((tc1, tc2) -> Integer.compare(tc1.from, tc2.from));
+
+        final int size = testCases.size();
+        final int[] starts = new int[size];
+        final int[] ends = new int[size];
+        final Variant[] variants = new Variant[size];
+        for (int i = 0; i < size; i++) {
+            final TestCase testCase = testCases.get(i);
+            starts[i] = testCase.from;
+            ends[i] = testCase.from + testCase.activeBucketSize(testSweet.buckets, loadedTime);
+            final boolean shadow = TestCase.TYPE_SHADOW.equals(testCase.type);
+            final String testName = prefix + testCase.testName;
+            variants[i] = new Variant(testSweetName, testName, testCase,
+                stats != null ? stats.metric(testSweetName, testName) : null,
+                stats != null && shadow ? stats.metric(testSweetName, testName + Variant.SHADOW_SUFFIX) : null,
+                stats != null && !shadow ? stats.breaker(testSweetName, testName) : null);
+        }
+        final String defaultTestName = prefix + Variant.DEFAULT_TEST_NAME;
+        final Variant defaultVariant = new Variant(testSweetName, defaultTestName, null,
+            stats != null ? stats.metric(testSweetName, defaultTestName) : null);
+        return new RoutingTable(testSweet, testSweet.buckets, testSweet.salt, starts, ends, variants, defaultVariant,
+            loadedTime, nextRampTime, layers);
+    }
+}
@@ -0,0 +1,147 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+/**
+ * Search parameters of a test case which override those of routed search requests.
+ * Parameters of the search body are put into the extra source, which takes precedence over the source.
+ */
+public class SearchOverlay {
+    public static final String PARAM_TIMEOUT = "timeout";
+    public static final String PARAM_TERMINATE_AFTER = "terminate_after";
+    // request_cache is the name in later versions
+    public static final String PARAM_QUERY_CACHE = "query_cache";
+    public static final String PARAM_REQUEST_CACHE = "request_cache";
+    public static final String PARAM_PREFERENCE = "preference";
+    public static final String PARAM_SEARCH_TYPE = "search_type";
+    // upper limit of size
+    public static final String PARAM_MAX_SIZE = "max_size";
+
+    private static final String SIZE = "size";
+    private static final int DEFAULT_SIZE = 10;
+
+    private final String timeout;
+
+    private final Integer terminateAfter;
+
+    private final Boolean queryCache;
+
+    private final String preference;
+
+    private final String searchType;
+
+    private final Integer maxSize;
+
+    private SearchOverlay(final String timeout, final Integer terminateAfter, final Boolean queryCache,
+            final String preference, final String searchType, final Integer maxSize) {
+        this.timeout = timeout;
+        this.terminateAfter = terminateAfter;
+        this.queryCache = queryCache;
+        this.preference = preference;
+        this.searchType = searchType;
+        this.maxSize = maxSize;
+    }
+
+    public void apply(final SearchRequest searchRequest) {
+        if (searchType != null) {
+            searchRequest.searchType(searchType);
+        }
+        if (preference != null) {
+            searchRequest.preference(preference);
+        }
+        if (queryCache != null) {
+            searchRequest.queryCache(queryCache);
+        }
+        if (timeout == null && terminateAfter == null && maxSize == null) {
+            return;
+        }
+
+        final Map<String, Object> extraSource = searchRequest.extraSource() != null
+            ? XContentHelper.convertToMap(searchRequest.extraSource(), false).v2() : new HashMap<>();
+        if (timeout != null) {
+            extraSource.put(PARAM_TIMEOUT, timeout);
+        }
+        if (terminateAfter != null) {
+            extraSource.put(PARAM_TERMINATE_AFTER, terminateAfter);
+        }
+        if (maxSize != null && size(searchRequest, extraSource) > maxSize) {
+            extraSource.put(SIZE, maxSize);
+        }
+        searchRequest.extraSource(extraSource);
+    }
+
+    private static int size(final SearchRequest searchRequest, final Map<String, Object> extraSource) {
+        Object size = extraSource.get(SIZE);
+        if (size == null && searchRequest.source() != null) {
+            size = XContentHelper.convertToMap(searchRequest.source(), false).v2().get(SIZE);
+        }
+        return size != null ? Integer.parseInt(size.toString()) : DEFAULT_SIZE;
+    }
+
+    public Map<String, Object> source() {
+        final Map<String, Object> source = new HashMap<>();
+        if (timeout != null) {
+            source.put(PARAM_TIMEOUT, timeout);
+        }
+        if (terminateAfter != null) {
+            source.put(PARAM_TERMINATE_AFTER, terminateAfter);
+        }
+        if (queryCache != null) {
+            source.put(PARAM_QUERY_CACHE, queryCache);
+        }
+        if (preference != null) {
+            source.put(PARAM_PREFERENCE, preference);
+        }
+        if (searchType != null) {
+            source.put(PARAM_SEARCH_TYPE, searchType);
+        }
+        if (maxSize != null) {
+            source.put(PARAM_MAX_SIZE, maxSize);
+        }
+        return source;
+    }
+
+    public static SearchOverlay parse(final Map<String, Object> params) {
+        String timeout = null;
+        Integer terminateAfter = null;
+        Boolean queryCache = null;
+        String preference = null;
+        String searchType = null;
+        Integer maxSize = null;
+        for (final Map.Entry<String, Object> entry : params.entrySet()) {
+            final String value = entry.getValue().toString();
+            switch (entry.getKey()) {
+            case PARAM_TIMEOUT:
+                TimeValue.parseTimeValue(value, null);
+                timeout = value;
+                break;
+            case PARAM_TERMINATE_AFTER:
+                terminateAfter = Integer.parseInt(value);
+                break;
+            case PARAM_QUERY_CACHE:
+            case PARAM_REQUEST_CACHE:
+                queryCache = Boolean.parseBoolean(value);
+                break;
+            case PARAM_PREFERENCE:
+                preference = value;
+                break;
+            case PARAM_SEARCH_TYPE:
+                SearchType.fromString(value);
+                searchType = value;
+                break;
+            case PARAM_MAX_SIZE:
+                maxSize = Integer.parseInt(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown search parameter: " + entry.getKey());
+            }
+        }
+        return new SearchOverlay(timeout, terminateAfter, queryCache, preference, searchType, maxSize);
+    }
+}
@@ -0,0 +1,99 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codelibs.elasticsearch.abtest.filter.transport.AbTestSearchActionFilter;
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+import org.codelibs.elasticsearch.abtest.stats.TestCaseMetric;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Mirrors search requests of shadow test cases to their test indices in background.
+ * Responses of the copies are only recorded, and never returned to the client.
+ */
+public class ShadowTraffic extends AbstractComponent {
+    public static final String SETTING_MAX_IN_FLIGHT = "abtest.shadow.max_in_flight";
+
+    protected final Client client;
+
+    protected final ThreadPool threadPool;
+
+    // shadow searches which are sent but not completed on this node
+    protected final AtomicInteger inFlight = new AtomicInteger();
+
+    protected final int maxInFlight;
+
+    @Inject
+    public ShadowTraffic(final Settings settings, final Client client, final ThreadPool threadPool,
+                         final ActionFilters actionFilters) {
+        super(settings);
+        this.client = client;
+        this.threadPool = threadPool;
+        this.maxInFlight = settings.getAsInt(SETTING_MAX_IN_FLIGHT, 10);
+
+        for(final ActionFilter filter: actionFilters.filters()) {
+            if(filter instanceof AbTestSearchActionFilter) {
+                ((AbTestSearchActionFilter) filter).injectShadowTraffic(this);
+            }
+        }
+    }
+
+    /**
+     * Sends a sampled copy of the search request to the test index of a shadow variant in background.
+     * The copy is skipped if too many shadow searches are in flight.
+     */
+    public void send(final SearchRequest searchRequest, final Variant variant) {
+        final TestCase testCase = variant.testCase;
+        if (testCase.sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= testCase.sampleRate) {
+            return;
+        }
+        final TestCaseMetric metric = variant.shadowMetric;
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            if (metric != null) {
+                metric.onRejected();
+            }
+            return;
+        }
+
+        final SearchRequest shadowRequest = new SearchRequest(searchRequest, searchRequest).indices(testCase.testIndexName);
+        if (testCase.overlay != null) {
+            testCase.overlay.apply(shadowRequest);
+        }
+        final ActionListener<SearchResponse> listener = new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(final SearchResponse response) {
+                inFlight.decrementAndGet();
+                if (metric != null) {
+                    metric.onResponse(response.getTookInMillis(), response.getHits().getTotalHits());
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                inFlight.decrementAndGet();
+                if (metric != null) {
+                    metric.onFailure();
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to search {} for shadow traffic.", e, testCase.testIndexName);
+                }
+            }
+        };
+        try {
+            threadPool.generic().execute(() -> client.search(shadowRequest, listener));
+        } catch (final Exception e) {
+            listener.onFailure(e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.ContextAndHeaderHolder;
+
+/**
+ * Compiled targeting rules of a test sweet over values in the request context, e.g. ab_locale or a custom header.
+ * A request is targeted if it matches every rule: the value of the key is one of the values,
+ * or, for a "not" rule, the value is missing or none of them.
+ * Values are kept in sorted arrays, so a rule is evaluated by a binary search without any allocation.
+ */
+public final class Targeting {
+    public static final String FIELD_NOT = "not";
+
+    // targets all requests
+    public static final Targeting ALL = new Targeting(new String[0], new String[0][], new boolean[0]);
+
+    private final String[] keys;
+
+    // sorted values of each key
+    private final String[][] values;
+
+    private final boolean[] negated;
+
+    private Targeting(final String[] keys, final String[][] values, final boolean[] negated) {
+        this.keys = keys;
+        this.values = values;
+        this.negated = negated;
+    }
+
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    /**
+     * Returns true if the request is targeted.
+     * A value missing in the context is looked up in the parent context, e.g. of a multi search request.
+     *
+     * @param parentContext the context of the parent request, or null
+     */
+    public boolean matches(final ContextAndHeaderHolder<?> context,
+                           final ContextAndHeaderHolder<?> parentContext) {
+        for (int i = 0; i < keys.length; i++) {
+            Object value = context != null ? context.getFromContext(keys[i]) : null;
+            if (value == null && parentContext != null) {
+                value = parentContext.getFromContext(keys[i]);
+            }
+            final boolean found = value instanceof String && Arrays.binarySearch(values[i], value) >= 0;
+            if (found == negated[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the keys which the rules read from the request context.
+     */
+    public List<String> keys() {
+        return Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    public Map<String, Object> source() {
+        final Map<String, Object> source = new LinkedHashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            final List<String> list = Arrays.asList(values[i]);
+            source.put(keys[i], negated[i] ? Collections.singletonMap(FIELD_NOT, list) : list);
+        }
+        return source;
+    }
+
+    /**
+     * Compiles rules of the form {"ab_locale": ["ja", "en"], "ab_device": "mobile", "X-Tenant": {"not": ["internal"]}}.
+     */
+    @SuppressWarnings("unchecked")
+    public static Targeting compile(final Map<String, Object> rules) {
+        if (rules.isEmpty()) {
+            return ALL;
+        }
+        final String[] keys = new String[rules.size()];
+        final String[][] values = new String[rules.size()][];
+        final boolean[] negated = new boolean[rules.size()];
+        int i = 0;
+        for (final Map.Entry<String, Object> entry : rules.entrySet()) {
+            Object rule = entry.getValue();
+            if (rule instanceof Map) {
+                final Map<String, Object> map = (Map<String, Object>) rule;
+                if (map.size() != 1 || !map.containsKey(FIELD_NOT)) {
+                    throw new IllegalArgumentException("Targeting rule of " + entry.getKey() + " must be values or {\""
+                        + FIELD_NOT + "\": values}.");
+                }
+                rule = map.get(FIELD_NOT);
+                negated[i] = true;
+            }
+            keys[i] = entry.getKey();
+            values[i] = toValues(entry.getKey(), rule);
+            i++;
+        }
+        return new Targeting(keys, values, negated);
+    }
+
+    private static String[] toValues(final String key, final Object rule) {
+        final List<String> list = new ArrayList<>();
+        if (rule instanceof List) {
+            for (final Object value : (List<?>) rule) {
+                if (value == null || value instanceof Map || value instanceof List) {
+                    throw new IllegalArgumentException("Targeting values of " + key + " must be strings.");
+                }
+                list.add(value.toString());
+            }
+        } else if (rule != null) {
+            list.add(rule.toString());
+        }
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException("Targeting rule of " + key + " has no values.");
+        }
+        final String[] array = list.toArray(new String[list.size()]);
+        Arrays.sort(array);
+        return array;
+    }
+}
@@ -0,0 +1,68 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Team-draft interleaving of two ranked lists.
+ * In each round the team with fewer picks, or a random team on a tie, picks its best item
+ * which is not picked yet. Random choices depend only on the seed,
+ * so the same ab_rt always gets the same merged list.
+ */
+public final class TeamDraftInterleaving {
+
+    private TeamDraftInterleaving() {
+    }
+
+    /**
+     * Returns picks in merged order: i + 1 for the i-th control item and -(i + 1) for the i-th candidate item.
+     * Items with the same key are picked once. The merged list is as long as the longer list at most.
+     */
+    public static int[] interleave(final String[] controlKeys, final String[] candidateKeys, final long seed) {
+        final int limit = Math.max(controlKeys.length, candidateKeys.length);
+        final int[] picks = new int[limit];
+        final Set<String> picked = new HashSet<>();
+        final SplittableRandom random = new SplittableRandom(seed);
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        int controlCount = 0;
+        int candidateCount = 0;
+        while (size < limit) {
+            while (i < controlKeys.length && picked.contains(controlKeys[i])) {
+                i++;
+            }
+            while (j < candidateKeys.length && picked.contains(candidateKeys[j])) {
+                j++;
+            }
+            final boolean fromControl;
+            if (i >= controlKeys.length && j >= candidateKeys.length) {
+                break;
+            } else if (i >= controlKeys.length) {
+                fromControl = false;
+            } else if (j >= candidateKeys.length) {
+                fromControl = true;
+            } else if (controlCount != candidateCount) {
+                fromControl = controlCount < candidateCount;
+            } else {
+                fromControl = random.nextBoolean();
+            }
+            if (fromControl) {
+                picked.add(controlKeys[i]);
+                picks[size++] = ++i;
+                controlCount++;
+            } else {
+                picked.add(candidateKeys[j]);
+                picks[size++] = -(++j);
+                candidateCount++;
+            }
+        }
+        if (size == limit) {
+            return picks;
+        }
+        final int[] result = new int[size];
+        System.arraycopy(picks, 0, result, 0, size);
+        return result;
+    }
+}
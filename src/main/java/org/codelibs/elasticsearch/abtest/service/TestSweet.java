@@ -0,0 +1,442 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+
+public class TestSweet {
+    public static final String FIELD_TEST_CASES = "testcases";
+    public static final String FIELD_BUCKETS = "buckets";
+    public static final String FIELD_SALT = "salt";
+    public static final String FIELD_VERSION = "version";
+    public static final String FIELD_HISTORY = "history";
+    public static final String FIELD_ALLOCATION = "allocation";
+    public static final String FIELD_LAYERS = "layers";
+    public static final String FIELD_NAME = "name";
+    public static final String FIELD_WARMUP = "warmup";
+    public static final String FIELD_TARGETING = "targeting";
+
+    // percentages are given by the settings
+    public static final String ALLOCATION_FIXED = "fixed";
+    // percentages are reallocated by Thompson sampling over rewards
+    public static final String ALLOCATION_THOMPSON = "thompson";
+
+    public static final String SETTING_HISTORY_SIZE = "abtest.history.size";
+
+    public static final int DEFAULT_BUCKETS = 100;
+    public static final int DEFAULT_HISTORY_SIZE = 5;
+    public static final int MAX_BUCKETS = 1000000;
+
+    public final String name;
+
+    // size of bucket space, i.e. 100% of traffic
+    public final int buckets;
+
+    // seed of ab_rt hash, test sweets with different salts are bucketed independently
+    public final int salt;
+
+    public final List<TestCase> testCases;
+
+    public final String allocation;
+
+    // independent test sweets on the same index, each assigning one more test case to every request
+    public final List<TestSweet> layers;
+
+    // search sources which are run against test indices before their buckets go live
+    public final List<Map<String, Object>> warmUpQueries;
+
+    // requests which are not targeted are not routed by this test sweet
+    public final Targeting targeting;
+
+    // published version, 0 if not published as a version yet
+    public final long version;
+
+    // previously published versions, newest first
+    public final List<TestSweet> history;
+
+    /**
+     * Builds a test sweet from the builder.
+     * Test cases are copied, so bucket ranges are assigned without changing those of the builder.
+     */
+    private TestSweet(final Builder builder) {
+        final String name = builder.name;
+        final int buckets = builder.buckets;
+        final int salt = builder.salt;
+        final String allocation = builder.allocation;
+        if (buckets <= 0 || MAX_BUCKETS < buckets) {
+            throw new IllegalArgumentException("buckets must be between 1 and " + MAX_BUCKETS + ".");
+        }
+        if (!ALLOCATION_FIXED.equals(allocation) && !ALLOCATION_THOMPSON.equals(allocation)) {
+            throw new IllegalArgumentException("Unknown allocation: " + allocation);
+        }
+        this.allocation = allocation;
+        this.name = name;
+        this.buckets = buckets;
+        this.salt = salt;
+        final List<TestCase> testCases = new ArrayList<>(builder.testCases.size());
+        int next = 0;
+        for (final TestCase original : builder.testCases) {
+            final TestCase testCase = original.copy();
+            testCases.add(testCase);
+            final int size = testCase.bucketSize(buckets);
+            if (testCase.from < 0) {
+                testCase.from = next;
+                testCase.to = next + size;
+            } else if (testCase.to - testCase.from != size) {
+                throw new IllegalArgumentException("from/to does not match percentage of " + testCase.testName + ".");
+            }
+            if (testCase.from < 0 || buckets < testCase.to) {
+                throw new IllegalArgumentException("Too many testcase.");
+            }
+            if (ALLOCATION_THOMPSON.equals(allocation) && testCase.rampTimes.length > 0) {
+                throw new IllegalArgumentException("ramp of " + testCase.testName + " cannot be used with "
+                    + ALLOCATION_THOMPSON + " allocation.");
+            }
+            for (final double rampPercentage : testCase.rampPercentages) {
+                testCase.bucketSize(buckets, rampPercentage);
+            }
+            next = Math.max(next, testCase.to);
+        }
+        final List<TestCase> sorted = new ArrayList<>(testCases);
+        sorted.sort((tc1, tc2) -> Integer.compare(tc1.from, tc2.from));
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).from < sorted.get(i - 1).to) {
+                throw new IllegalArgumentException("Bucket ranges of " + sorted.get(i - 1).testName + " and "
+                    + sorted.get(i).testName + " overlap.");
+            }
+        }
+        this.testCases = Collections.unmodifiableList(testCases);
+        validateLayers(builder.layers);
+        this.layers = Collections.unmodifiableList(new ArrayList<>(builder.layers));
+        this.warmUpQueries = Collections.unmodifiableList(new ArrayList<>(builder.warmUpQueries));
+        this.targeting = builder.targeting;
+        this.version = builder.version;
+        this.history = Collections.unmodifiableList(new ArrayList<>(builder.history));
+    }
+
+    public static Builder builder(final String name) {
+        return new Builder(name);
+    }
+
+    /**
+     * Returns a builder which has all fields of this test sweet.
+     */
+    public Builder toBuilder() {
+        return new Builder(name).buckets(buckets).salt(salt).allocation(allocation).testCases(testCases).layers(layers)
+            .warmUpQueries(warmUpQueries).targeting(targeting).version(version).history(history);
+    }
+
+    /**
+     * Returns the next version which publishes the test cases of the update.
+     * The current one, if any, is kept at the head of the history.
+     */
+    public static TestSweet publish(final TestSweet current, final TestSweet update, final int historySize) {
+        if (current == null || current.version == 0 && current.testCases.isEmpty()) {
+            return update.toBuilder().version(1L).history(Collections.emptyList()).build();
+        }
+        return update.toBuilder().version(current.latestVersion() + 1).history(current.historyWith(null, historySize))
+            .build();
+    }
+
+    /**
+     * Returns this test sweet switched back to the version in the history, or the previous one if version is negative.
+     * The current one is kept at the head of the history, so a rollback can be rolled back.
+     */
+    public TestSweet rollback(final long version, final int historySize) {
+        TestSweet target = null;
+        for (final TestSweet previous : history) {
+            if (version < 0 || previous.version == version) {
+                target = previous;
+                break;
+            }
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("Version " + (version < 0 ? "" : version + " ") + "of " + name
+                + " is not in the history.");
+        }
+        return target.toBuilder().history(historyWith(target, historySize)).build();
+    }
+
+    /**
+     * Returns a copy whose test cases have the given bucket sizes and are laid out in order from bucket 0.
+     * Test cases which are not in bucketSizes keep their percentage.
+     */
+    public TestSweet reallocate(final Map<String, Integer> bucketSizes) {
+        final List<TestCase> list = new ArrayList<>(testCases.size());
+        for (final TestCase testCase : testCases) {
+            final Integer size = bucketSizes.get(testCase.testName);
+            list.add(testCase.copy(size != null ? size * 100.0 / buckets : testCase.percentage));
+        }
+        return toBuilder().testCases(list).build();
+    }
+
+    /**
+     * Checks that layers are bucketed independently of this test sweet and each other,
+     * and that their test cases only rewrite the index and search parameters.
+     */
+    private void validateLayers(final List<TestSweet> layers) {
+        final Set<String> names = new HashSet<>();
+        final Set<Integer> salts = new HashSet<>();
+        salts.add(salt);
+        for (final TestSweet layer : layers) {
+            if (layer.name == null || layer.name.isEmpty() || !names.add(layer.name)) {
+                throw new IllegalArgumentException("Layers of " + name + " must have unique names.");
+            }
+            if (!salts.add(layer.salt)) {
+                throw new IllegalArgumentException("salt of layer " + layer.name + " must differ from the others.");
+            }
+            if (!layer.layers.isEmpty() || !ALLOCATION_FIXED.equals(layer.allocation) || !layer.targeting.isEmpty()) {
+                throw new IllegalArgumentException("Layer " + layer.name + " cannot have layers, "
+                    + FIELD_ALLOCATION + " or " + FIELD_TARGETING + ".");
+            }
+            for (final TestCase testCase : layer.testCases) {
+                if (!TestCase.TYPE_SPLIT.equals(testCase.type)) {
+                    throw new IllegalArgumentException("Test case " + testCase.testName + " of layer " + layer.name
+                        + " must be " + TestCase.TYPE_SPLIT + ".");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the largest version in this test sweet and its history.
+     */
+    public long latestVersion() {
+        long latest = version;
+        for (final TestSweet previous : history) {
+            latest = Math.max(latest, previous.version);
+        }
+        return latest;
+    }
+
+    private List<TestSweet> historyWith(final TestSweet excluded, final int historySize) {
+        final List<TestSweet> list = new ArrayList<>(historySize);
+        if (historySize > 0) {
+            list.add(toBuilder().history(Collections.emptyList()).build());
+        }
+        for (final TestSweet previous : history) {
+            if (list.size() >= historySize) {
+                break;
+            }
+            if (previous != excluded) {
+                list.add(previous);
+            }
+        }
+        return list;
+    }
+
+    public Map<String, Object> source() {
+        final List<Map<String, Object>> testCaseList = new ArrayList<>(testCases.size());
+        for (final TestCase testCase : testCases) {
+            testCaseList.add(testCase.source());
+        }
+        final Map<String, Object> source = new HashMap<>();
+        source.put(FIELD_BUCKETS, buckets);
+        source.put(FIELD_SALT, salt);
+        source.put(FIELD_TEST_CASES, testCaseList);
+        if (!ALLOCATION_FIXED.equals(allocation)) {
+            source.put(FIELD_ALLOCATION, allocation);
+        }
+        if (!layers.isEmpty()) {
+            final List<Map<String, Object>> layerList = new ArrayList<>(layers.size());
+            for (final TestSweet layer : layers) {
+                final Map<String, Object> layerSource = layer.source();
+                layerSource.put(FIELD_NAME, layer.name);
+                layerList.add(layerSource);
+            }
+            source.put(FIELD_LAYERS, layerList);
+        }
+        if (!warmUpQueries.isEmpty()) {
+            source.put(FIELD_WARMUP, warmUpQueries);
+        }
+        if (!targeting.isEmpty()) {
+            source.put(FIELD_TARGETING, targeting.source());
+        }
+        if (version > 0) {
+            source.put(FIELD_VERSION, version);
+        }
+        if (!history.isEmpty()) {
+            final List<Map<String, Object>> historyList = new ArrayList<>(history.size());
+            for (final TestSweet previous : history) {
+                historyList.add(previous.source());
+            }
+            source.put(FIELD_HISTORY, historyList);
+        }
+        return source;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static TestSweet parse(final String name, final Map<String, Object> source) {
+        final Object testCasesObj = source.get(FIELD_TEST_CASES);
+        if (testCasesObj == null) {
+            throw new IllegalArgumentException("testcases was null.");
+        }
+        final Object bucketsObj = source.get(FIELD_BUCKETS);
+        final int buckets = bucketsObj != null ? Integer.parseInt(bucketsObj.toString()) : DEFAULT_BUCKETS;
+        final Object saltObj = source.get(FIELD_SALT);
+        final int salt = saltObj != null ? Integer.parseInt(saltObj.toString()) : 0;
+        final List<TestSweet> layers = new ArrayList<>();
+        final Object layersObj = source.get(FIELD_LAYERS);
+        if (layersObj != null) {
+            for (final Map<String, Object> layer : (List<Map<String, Object>>) layersObj) {
+                final Object layerName = layer.get(FIELD_NAME);
+                if (layerName == null) {
+                    throw new IllegalArgumentException("name of a layer was null.");
+                }
+                final Map<String, Object> layerSource = new HashMap<>(layer);
+                if (!layerSource.containsKey(FIELD_SALT)) {
+                    // layers are bucketed independently by default
+                    layerSource.put(FIELD_SALT, layerName.hashCode());
+                }
+                layers.add(parse(layerName.toString(), layerSource));
+            }
+        }
+        final List<Map<String, Object>> warmUpQueries = new ArrayList<>();
+        final Object warmUpObj = source.get(FIELD_WARMUP);
+        if (warmUpObj != null) {
+            if (!(warmUpObj instanceof List)) {
+                throw new IllegalArgumentException(FIELD_WARMUP + " must be an array of search sources.");
+            }
+            for (final Object query : (List<Object>) warmUpObj) {
+                if (!(query instanceof Map)) {
+                    throw new IllegalArgumentException(FIELD_WARMUP + " must be an array of search sources.");
+                }
+                warmUpQueries.add((Map<String, Object>) query);
+            }
+        }
+        final Object targetingObj = source.get(FIELD_TARGETING);
+        if (targetingObj != null && !(targetingObj instanceof Map)) {
+            throw new IllegalArgumentException(FIELD_TARGETING + " must be an object of rules.");
+        }
+        final Targeting targeting =
+            targetingObj != null ? Targeting.compile((Map<String, Object>) targetingObj) : Targeting.ALL;
+        final Object allocationObj = source.get(FIELD_ALLOCATION);
+        final String allocation = allocationObj != null ? allocationObj.toString() : ALLOCATION_FIXED;
+        final Object versionObj = source.get(FIELD_VERSION);
+        final long version = versionObj != null ? Long.parseLong(versionObj.toString()) : 0L;
+        final List<TestSweet> history = new ArrayList<>();
+        final Object historyObj = source.get(FIELD_HISTORY);
+        if (historyObj != null) {
+            for (final Map<String, Object> previous : (List<Map<String, Object>>) historyObj) {
+                history.add(parse(name, previous));
+            }
+        }
+        final List<TestCase> testCaseList = new ArrayList<>();
+        for (final Map<String, Object> map : (List<Map<String, Object>>) testCasesObj) {
+            testCaseList.add(TestCase.parse(map));
+        }
+        return builder(name).buckets(buckets).salt(salt).allocation(allocation).testCases(testCaseList).layers(layers)
+            .warmUpQueries(warmUpQueries).targeting(targeting).version(version).history(history).build();
+    }
+
+    public static TestSweet parse(final String name, final List<Map<String, Object>> testCases) {
+        return parse(name, DEFAULT_BUCKETS, 0, testCases);
+    }
+
+    public static TestSweet parse(final String name, final int buckets, final int salt,
+            final List<Map<String, Object>> testCases) {
+        final List<TestCase> testCaseList = new ArrayList<>(testCases.size());
+        for (final Map<String, Object> map : testCases) {
+            testCaseList.add(TestCase.parse(map));
+        }
+        return builder(name).buckets(buckets).salt(salt).testCases(testCaseList).build();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final TestSweet other = (TestSweet) obj;
+        return name.equals(other.name) && source().equals(other.source());
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    public static class Builder {
+        private final String name;
+
+        private int buckets = DEFAULT_BUCKETS;
+
+        private int salt = 0;
+
+        private String allocation = ALLOCATION_FIXED;
+
+        private List<TestCase> testCases = Collections.emptyList();
+
+        private List<TestSweet> layers = Collections.emptyList();
+
+        private List<Map<String, Object>> warmUpQueries = Collections.emptyList();
+
+        private Targeting targeting = Targeting.ALL;
+
+        private long version = 0L;
+
+        private List<TestSweet> history = Collections.emptyList();
+
+        private Builder(final String name) {
+            this.name = name;
+        }
+
+        public Builder buckets(final int buckets) {
+            this.buckets = buckets;
+            return this;
+        }
+
+        public Builder salt(final int salt) {
+            this.salt = salt;
+            return this;
+        }
+
+        public Builder allocation(final String allocation) {
+            this.allocation = allocation;
+            return this;
+        }
+
+        public Builder testCases(final List<TestCase> testCases) {
+            this.testCases = testCases;
+            return this;
+        }
+
+        public Builder layers(final List<TestSweet> layers) {
+            this.layers = layers;
+            return this;
+        }
+
+        public Builder warmUpQueries(final List<Map<String, Object>> warmUpQueries) {
+            this.warmUpQueries = warmUpQueries;
+            return this;
+        }
+
+        public Builder targeting(final Targeting targeting) {
+            this.targeting = targeting;
+            return this;
+        }
+
+        public Builder version(final long version) {
+            this.version = version;
+            return this;
+        }
+
+        public Builder history(final List<TestSweet> history) {
+            this.history = history;
+            return this;
+        }
+
+        public TestSweet build() {
+            return new TestSweet(this);
+        }
+    }
+}
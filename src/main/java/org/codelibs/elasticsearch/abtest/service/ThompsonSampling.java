@@ -0,0 +1,100 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.SplittableRandom;
+
+/**
+ * Thompson sampling over Bernoulli rewards.
+ * The share of an arm is the probability that its Beta(rewards + 1, misses + 1) sample is the largest,
+ * which is estimated by draws from a seeded generator, so the result only depends on the arguments.
+ */
+public final class ThompsonSampling {
+
+    private ThompsonSampling() {
+    }
+
+    public static double[] winProbabilities(final long[] trials, final long[] rewards, final int draws, final long seed) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final int arms = trials.length;
+        final double[] wins = new double[arms];
+        for (int d = 0; d < draws; d++) {
+            int best = 0;
+            double bestValue = -1;
+            for (int i = 0; i < arms; i++) {
+                final long successes = Math.min(rewards[i], trials[i]);
+                final double value = beta(random, successes + 1, trials[i] - successes + 1);
+                if (value > bestValue) {
+                    best = i;
+                    bestValue = value;
+                }
+            }
+            wins[best]++;
+        }
+        for (int i = 0; i < arms; i++) {
+            wins[i] /= draws;
+        }
+        return wins;
+    }
+
+    /**
+     * Splits total buckets by the probabilities, giving each arm at least minBuckets if possible.
+     * Fractions are rounded by the largest remainder, so the sizes always sum up to total.
+     */
+    public static int[] allocate(final double[] probabilities, final int total, final int minBuckets) {
+        final int arms = probabilities.length;
+        final int floor = Math.min(minBuckets, total / arms);
+        final int rest = total - floor * arms;
+        final int[] sizes = new int[arms];
+        final double[] remainders = new double[arms];
+        int allocated = 0;
+        for (int i = 0; i < arms; i++) {
+            final double share = probabilities[i] * rest;
+            sizes[i] = floor + (int) share;
+            remainders[i] = share - (int) share;
+            allocated += sizes[i];
+        }
+        while (allocated < total) {
+            int max = 0;
+            for (int i = 1; i < arms; i++) {
+                if (remainders[i] > remainders[max]) {
+                    max = i;
+                }
+            }
+            sizes[max]++;
+            remainders[max] = -1;
+            allocated++;
+        }
+        return sizes;
+    }
+
+    static double beta(final SplittableRandom random, final double alpha, final double beta) {
+        final double x = gamma(random, alpha);
+        final double y = gamma(random, beta);
+        return x / (x + y);
+    }
+
+    // Marsaglia and Tsang's method, shape >= 1
+    static double gamma(final SplittableRandom random, final double shape) {
+        final double d = shape - 1.0 / 3;
+        final double c = 1 / Math.sqrt(9 * d);
+        while (true) {
+            final double x = gaussian(random);
+            double v = 1 + c * x;
+            if (v <= 0) {
+                continue;
+            }
+            v = v * v * v;
+            final double u = random.nextDouble();
+            if (u < 1 - 0.0331 * x * x * x * x || Math.log(u) < 0.5 * x * x + d * (1 - v + Math.log(v))) {
+                return d * v;
+            }
+        }
+    }
+
+    static double gaussian(final SplittableRandom random) {
+        double u;
+        do {
+            u = random.nextDouble();
+        } while (u == 0);
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+}
@@ -0,0 +1,106 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import java.util.List;
+
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+import org.codelibs.elasticsearch.abtest.stats.CircuitBreaker;
+import org.codelibs.elasticsearch.abtest.stats.TestCaseMetric;
+
+/**
+ * A test case which a search request is routed to.
+ * Variants are built with a routing table, so selecting one does not allocate.
+ * The default variant of a test sweet stands for unassigned buckets, which search the original index.
+ */
+public class Variant {
+    public static final String DEFAULT_TEST_NAME = "_default";
+
+    // suffix of test names whose metrics are of shadow searches
+    public static final String SHADOW_SUFFIX = "#shadow";
+
+    // no test sweet
+    public static final Variant NONE = new Variant(null, null, null, null);
+
+    public final String testSweetName;
+
+    public final String testName;
+
+    // null for the default variant
+    public final TestCase testCase;
+
+    // null if not recorded
+    public final TestCaseMetric metric;
+
+    // metric of shadow searches, null if not a shadow variant or not recorded
+    public final TestCaseMetric shadowMetric;
+
+    // circuit breaker which routes requests back to the original index, null if not guarded
+    public final CircuitBreaker breaker;
+
+    // ticket of the breaker probe if this variant is selected for one, otherwise CircuitBreaker.NO_PROBE
+    public final long probe;
+
+    public Variant(final String testSweetName, final String testName, final TestCase testCase,
+            final TestCaseMetric metric) {
+        this(testSweetName, testName, testCase, metric, null);
+    }
+
+    public Variant(final String testSweetName, final String testName, final TestCase testCase,
+            final TestCaseMetric metric, final TestCaseMetric shadowMetric) {
+        this(testSweetName, testName, testCase, metric, shadowMetric, null);
+    }
+
+    public Variant(final String testSweetName, final String testName, final TestCase testCase,
+            final TestCaseMetric metric, final TestCaseMetric shadowMetric, final CircuitBreaker breaker) {
+        this(testSweetName, testName, testCase, metric, shadowMetric, breaker, CircuitBreaker.NO_PROBE);
+    }
+
+    private Variant(final String testSweetName, final String testName, final TestCase testCase,
+            final TestCaseMetric metric, final TestCaseMetric shadowMetric, final CircuitBreaker breaker,
+            final long probe) {
+        this.testSweetName = testSweetName;
+        this.testName = testName;
+        this.testCase = testCase;
+        this.metric = metric;
+        this.shadowMetric = shadowMetric;
+        this.breaker = breaker;
+        this.probe = probe;
+    }
+
+    /**
+     * Returns a copy of this variant for the request which carries the probe of its breaker.
+     */
+    public Variant probe(final long ticket) {
+        return new Variant(testSweetName, testName, testCase, metric, shadowMetric, breaker, ticket);
+    }
+
+    /**
+     * Returns the index to search, which is the original index for the default variant
+     * and for a shadow variant.
+     */
+    public String index(final String originalIndex) {
+        return testCase != null && !TestCase.TYPE_SHADOW.equals(testCase.type) ? testCase.testIndexName : originalIndex;
+    }
+
+    /**
+     * Returns the index to search for variants selected from layers of a test sweet, starting at from.
+     * The first variant which rewrites the index takes precedence, so the base test cases win over layers
+     * and a layer wins over the following ones.
+     */
+    public static String index(final List<Variant> variants, final int from, final String originalIndex) {
+        for (int i = from; i < variants.size(); i++) {
+            final String index = variants.get(i).index(originalIndex);
+            if (!index.equals(originalIndex)) {
+                return index;
+            }
+        }
+        return originalIndex;
+    }
+
+    public boolean isDefault() {
+        return testCase == null;
+    }
+
+    public boolean isType(final String type) {
+        return testCase != null && type.equals(testCase.type);
+    }
+}
@@ -0,0 +1,117 @@
+package org.codelibs.elasticsearch.abtest.stats;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * Registry of test case metrics on this node.
+ * Metrics are looked up when a routing table is built and referenced by its variants,
+ * so recording a search does not touch this registry.
+ */
+public class AbTestStats extends AbstractComponent {
+    public static final String SETTING_BREAKER_ENABLED = "abtest.breaker.enabled";
+    public static final String SETTING_BREAKER_WINDOW = "abtest.breaker.window";
+    public static final String SETTING_BREAKER_MIN_REQUESTS = "abtest.breaker.min_requests";
+    public static final String SETTING_BREAKER_ERROR_RATE = "abtest.breaker.error_rate";
+    public static final String SETTING_BREAKER_SLOW_TOOK = "abtest.breaker.slow_took";
+    public static final String SETTING_BREAKER_SLOW_RATE = "abtest.breaker.slow_rate";
+    public static final String SETTING_BREAKER_OPEN_DURATION = "abtest.breaker.open_duration";
+
+    // test sweet name -> test name -> metric
+    private final ConcurrentMap<String, ConcurrentMap<String, TestCaseMetric>> metrics =
+        ConcurrentCollections.newConcurrentMap();
+
+    private final boolean breakerEnabled;
+
+    private final long breakerWindow;
+
+    private final int breakerMinRequests;
+
+    private final double breakerErrorRate;
+
+    private final long breakerSlowTook;
+
+    private final double breakerSlowRate;
+
+    private final long breakerOpenDuration;
+
+    @Inject
+    public AbTestStats(final Settings settings) {
+        super(settings);
+        breakerEnabled = settings.getAsBoolean(SETTING_BREAKER_ENABLED, true);
+        breakerWindow = settings.getAsTime(SETTING_BREAKER_WINDOW, TimeValue.timeValueSeconds(10)).millis();
+        breakerMinRequests = settings.getAsInt(SETTING_BREAKER_MIN_REQUESTS, 20);
+        breakerErrorRate = settings.getAsDouble(SETTING_BREAKER_ERROR_RATE, 0.5);
+        breakerSlowTook = settings.getAsTime(SETTING_BREAKER_SLOW_TOOK, TimeValue.timeValueSeconds(5)).millis();
+        breakerSlowRate = settings.getAsDouble(SETTING_BREAKER_SLOW_RATE, 0.5);
+        breakerOpenDuration = settings.getAsTime(SETTING_BREAKER_OPEN_DURATION, TimeValue.timeValueSeconds(30)).millis();
+    }
+
+    public TestCaseMetric metric(final String testSweetName, final String testName) {
+        return metrics.computeIfAbsent(testSweetName, name -> ConcurrentCollections.newConcurrentMap())
+            .computeIfAbsent(testName, name -> new TestCaseMetric());
+    }
+
+    /**
+     * Returns the metric of the test case, or null if no routing table has referenced it.
+     */
+    public TestCaseMetric existingMetric(final String testSweetName, final String testName) {
+        final ConcurrentMap<String, TestCaseMetric> testCaseMetrics = metrics.get(testSweetName);
+        return testCaseMetrics != null ? testCaseMetrics.get(testName) : null;
+    }
+
+    /**
+     * Returns the circuit breaker of the test case, which is shared by its routing tables,
+     * or null if circuit breakers are disabled.
+     */
+    public CircuitBreaker breaker(final String testSweetName, final String testName) {
+        if (!breakerEnabled) {
+            return null;
+        }
+        return metric(testSweetName, testName).breaker(() -> new CircuitBreaker(breakerWindow, breakerMinRequests,
+            breakerErrorRate, breakerSlowTook, breakerSlowRate, breakerOpenDuration));
+    }
+
+    /**
+     * Evicts metrics and circuit breakers of the test sweet, including those of its layers and shadow test cases,
+     * since all of them are registered under the name of the test sweet.
+     */
+    public void remove(final String testSweetName) {
+        metrics.remove(testSweetName);
+    }
+
+    /**
+     * Returns snapshots of test sweets, or of all test sweets if names is null or empty.
+     */
+    public Map<String, Map<String, TestCaseStats>> stats(final String[] testSweetNames) {
+        final Map<String, Map<String, TestCaseStats>> stats = new HashMap<>();
+        if (testSweetNames == null || testSweetNames.length == 0) {
+            for (final Map.Entry<String, ConcurrentMap<String, TestCaseMetric>> entry : metrics.entrySet()) {
+                stats.put(entry.getKey(), stats(entry.getValue()));
+            }
+        } else {
+            for (final String testSweetName : testSweetNames) {
+                final ConcurrentMap<String, TestCaseMetric> testCaseMetrics = metrics.get(testSweetName);
+                if (testCaseMetrics != null) {
+                    stats.put(testSweetName, stats(testCaseMetrics));
+                }
+            }
+        }
+        return stats;
+    }
+
+    private Map<String, TestCaseStats> stats(final Map<String, TestCaseMetric> testCaseMetrics) {
+        final Map<String, TestCaseStats> stats = new HashMap<>();
+        for (final Map.Entry<String, TestCaseMetric> entry : testCaseMetrics.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().stats());
+        }
+        return stats;
+    }
+}
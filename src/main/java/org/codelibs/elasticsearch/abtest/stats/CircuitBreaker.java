@@ -0,0 +1,210 @@
+package org.codelibs.elasticsearch.abtest.stats;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker of a test case over a sliding window of its outcomes on this node.
+ * When the failure rate or the slow rate in the window reaches its threshold, the breaker opens
+ * and requests of the test case are served by the original index.
+ * After the open duration, one request is let through as a probe,
+ * which closes the breaker on a fast success and opens it again otherwise.
+ * The probe is identified by a ticket, so outcomes of requests let through before the breaker opened
+ * do not decide for it.
+ * All times must come from the same clock.
+ */
+public class CircuitBreaker {
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    // results of allowRequest other than a probe ticket
+    public static final long REJECTED = -1L;
+    public static final long NO_PROBE = 0L;
+
+    private static final int SLOTS = 10;
+
+    private final long slotMillis;
+
+    private final int minRequests;
+
+    private final double errorRate;
+
+    private final long slowMillis;
+
+    private final double slowRate;
+
+    private final long openMillis;
+
+    private final Slot[] slots = new Slot[SLOTS];
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+
+    // end of the open duration, or deadline of the probe when half-open
+    private final AtomicLong openUntil = new AtomicLong();
+
+    // ticket of the current probe
+    private final AtomicLong probe = new AtomicLong(NO_PROBE);
+
+    private final AtomicLong probeSequence = new AtomicLong();
+
+    private final LongAdder trips = new LongAdder();
+
+    public CircuitBreaker(final long windowMillis, final int minRequests, final double errorRate,
+            final long slowMillis, final double slowRate, final long openMillis) {
+        this.slotMillis = Math.max(1L, windowMillis / SLOTS);
+        this.minRequests = minRequests;
+        this.errorRate = errorRate;
+        this.slowMillis = slowMillis;
+        this.slowRate = slowRate;
+        this.openMillis = openMillis;
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Returns REJECTED if a request may not be routed to the test case, NO_PROBE if it may,
+     * or a probe ticket, which must be passed with its outcome.
+     * When the open duration has passed, only the caller which wins the probe gets a ticket.
+     */
+    public long allowRequest(final long now) {
+        if (state.get() == CLOSED) {
+            return NO_PROBE;
+        }
+        final long until = openUntil.get();
+        if (now < until || !openUntil.compareAndSet(until, now + openMillis)) {
+            return REJECTED;
+        }
+        final long ticket = probeSequence.incrementAndGet();
+        probe.set(ticket);
+        state.set(HALF_OPEN);
+        return ticket;
+    }
+
+    /**
+     * Records a response of a request which got the ticket from allowRequest.
+     */
+    public void onResponse(final long now, final long took, final long ticket) {
+        final boolean slow = took >= slowMillis;
+        final int current = state.get();
+        if (current == HALF_OPEN) {
+            if (!isProbe(ticket)) {
+                return;
+            }
+            if (slow) {
+                trip(HALF_OPEN, now);
+            } else if (state.compareAndSet(HALF_OPEN, CLOSED)) {
+                reset();
+            }
+            return;
+        }
+        if (current == CLOSED) {
+            final Slot slot = slot(now);
+            slot.total.increment();
+            if (slow) {
+                slot.slow.increment();
+                evaluate(now);
+            }
+        }
+    }
+
+    /**
+     * Records a failure of a request which got the ticket from allowRequest.
+     */
+    public void onFailure(final long now, final long ticket) {
+        final int current = state.get();
+        if (current == HALF_OPEN) {
+            if (isProbe(ticket)) {
+                trip(HALF_OPEN, now);
+            }
+            return;
+        }
+        if (current == CLOSED) {
+            final Slot slot = slot(now);
+            slot.total.increment();
+            slot.failed.increment();
+            evaluate(now);
+        }
+    }
+
+    private boolean isProbe(final long ticket) {
+        return ticket != NO_PROBE && ticket == probe.get();
+    }
+
+    public boolean isClosed() {
+        return state.get() == CLOSED;
+    }
+
+    public int state() {
+        return state.get();
+    }
+
+    public long trips() {
+        return trips.sum();
+    }
+
+    private void evaluate(final long now) {
+        final long epoch = now / slotMillis;
+        long total = 0;
+        long failed = 0;
+        long slow = 0;
+        for (final Slot slot : slots) {
+            if (epoch - SLOTS < slot.epoch && slot.epoch <= epoch) {
+                total += slot.total.sum();
+                failed += slot.failed.sum();
+                slow += slot.slow.sum();
+            }
+        }
+        if (total >= minRequests && (failed >= total * errorRate || slow >= total * slowRate)) {
+            trip(CLOSED, now);
+        }
+    }
+
+    private void trip(final int expected, final long now) {
+        if (state.compareAndSet(expected, OPEN)) {
+            openUntil.set(now + openMillis);
+            trips.increment();
+        }
+    }
+
+    private Slot slot(final long now) {
+        final long epoch = now / slotMillis;
+        final Slot slot = slots[(int) (epoch % SLOTS)];
+        if (slot.epoch != epoch) {
+            synchronized (slot) {
+                if (slot.epoch != epoch) {
+                    slot.reset();
+                    slot.epoch = epoch;
+                }
+            }
+        }
+        return slot;
+    }
+
+    private void reset() {
+        for (final Slot slot : slots) {
+            synchronized (slot) {
+                slot.reset();
+                slot.epoch = -1;
+            }
+        }
+    }
+
+    private static final class Slot {
+        volatile long epoch = -1;
+
+        final LongAdder total = new LongAdder();
+
+        final LongAdder failed = new LongAdder();
+
+        final LongAdder slow = new LongAdder();
+
+        void reset() {
+            total.reset();
+            failed.reset();
+            slow.reset();
+        }
+    }
+}
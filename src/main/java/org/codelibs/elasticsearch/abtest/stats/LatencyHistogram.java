@@ -0,0 +1,66 @@
+package org.codelibs.elasticsearch.abtest.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of took times with fixed bucket bounds in milliseconds.
+ * Counts are kept in striped adders, so concurrent searches do not contend on recording.
+ */
+public class LatencyHistogram {
+    // upper bounds (inclusive) of buckets, the last bucket counts everything above
+    static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000 };
+
+    private final LongAdder[] counts;
+
+    public LatencyHistogram() {
+        counts = new LongAdder[BOUNDS.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(final long millis) {
+        counts[bucket(millis)].increment();
+    }
+
+    public long[] counts() {
+        final long[] values = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            values[i] = counts[i].sum();
+        }
+        return values;
+    }
+
+    static int bucket(final long millis) {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            if (millis <= BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BOUNDS.length;
+    }
+
+    /**
+     * Returns the upper bound of the bucket which contains the percentile,
+     * -1 if nothing is counted.
+     * Values above the last bound are reported as the last bound.
+     */
+    public static long percentile(final long[] counts, final double percent) {
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percent / 100.0));
+        long sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            sum += counts[i];
+            if (sum >= rank) {
+                return i < BOUNDS.length ? BOUNDS[i] : BOUNDS[BOUNDS.length - 1];
+            }
+        }
+        return BOUNDS[BOUNDS.length - 1];
+    }
+}
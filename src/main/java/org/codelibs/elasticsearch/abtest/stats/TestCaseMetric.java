@@ -0,0 +1,66 @@
+package org.codelibs.elasticsearch.abtest.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Live counters of a test case on this node.
+ */
+public class TestCaseMetric {
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    // requests which are not sent, such as shadow searches over the in-flight limit
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder hits = new LongAdder();
+
+    // rewards such as clicks and conversions reported by _abtest/feedback
+    private final LongAdder rewards = new LongAdder();
+
+    private final LongAdder tookInMillis = new LongAdder();
+
+    private final LatencyHistogram tookHistogram = new LatencyHistogram();
+
+    // circuit breaker of the test case, null if not guarded
+    private volatile CircuitBreaker breaker;
+
+    public void onResponse(final long took, final long totalHits) {
+        count.increment();
+        hits.add(totalHits);
+        tookInMillis.add(took);
+        tookHistogram.record(took);
+    }
+
+    public void onFailure() {
+        count.increment();
+        failures.increment();
+    }
+
+    public void onRejected() {
+        rejected.increment();
+    }
+
+    public void onReward(final long value) {
+        rewards.add(value);
+    }
+
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    synchronized CircuitBreaker breaker(final Supplier<CircuitBreaker> supplier) {
+        if (breaker == null) {
+            breaker = supplier.get();
+        }
+        return breaker;
+    }
+
+    public TestCaseStats stats() {
+        final CircuitBreaker breaker = this.breaker;
+        return new TestCaseStats(count.sum(), failures.sum(), rejected.sum(), hits.sum(), tookInMillis.sum(),
+            tookHistogram.counts(), breaker != null ? breaker.trips() : 0,
+            breaker != null && breaker.state() != CircuitBreaker.CLOSED ? 1 : 0, rewards.sum());
+    }
+}
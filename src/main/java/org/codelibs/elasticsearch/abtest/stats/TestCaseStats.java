@@ -0,0 +1,179 @@
+package org.codelibs.elasticsearch.abtest.stats;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Snapshot of counters of a test case, which is merged across nodes.
+ */
+public class TestCaseStats implements Streamable, ToXContent {
+    private long count;
+
+    private long failures;
+
+    private long rejected;
+
+    private long hits;
+
+    private long tookInMillis;
+
+    private long[] tookHistogram;
+
+    // times the circuit breaker opened
+    private long trips;
+
+    // nodes whose circuit breaker is open or half-open
+    private long openNodes;
+
+    private long rewards;
+
+    TestCaseStats() {
+    }
+
+    public TestCaseStats(final long count, final long failures, final long rejected, final long hits,
+            final long tookInMillis, final long[] tookHistogram) {
+        this(count, failures, rejected, hits, tookInMillis, tookHistogram, 0, 0, 0);
+    }
+
+    public TestCaseStats(final long count, final long failures, final long rejected, final long hits,
+            final long tookInMillis, final long[] tookHistogram, final long trips, final long openNodes,
+            final long rewards) {
+        this.count = count;
+        this.failures = failures;
+        this.rejected = rejected;
+        this.hits = hits;
+        this.tookInMillis = tookInMillis;
+        this.tookHistogram = tookHistogram;
+        this.trips = trips;
+        this.openNodes = openNodes;
+        this.rewards = rewards;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getTookInMillis() {
+        return tookInMillis;
+    }
+
+    public long getTrips() {
+        return trips;
+    }
+
+    public long getOpenNodes() {
+        return openNodes;
+    }
+
+    public long getRewards() {
+        return rewards;
+    }
+
+    public long getTookPercentile(final double percent) {
+        return LatencyHistogram.percentile(tookHistogram, percent);
+    }
+
+    public void add(final TestCaseStats other) {
+        count += other.count;
+        failures += other.failures;
+        rejected += other.rejected;
+        hits += other.hits;
+        tookInMillis += other.tookInMillis;
+        trips += other.trips;
+        openNodes += other.openNodes;
+        rewards += other.rewards;
+        final int length = Math.min(tookHistogram.length, other.tookHistogram.length);
+        for (int i = 0; i < length; i++) {
+            tookHistogram[i] += other.tookHistogram[i];
+        }
+    }
+
+    public TestCaseStats copy() {
+        return new TestCaseStats(count, failures, rejected, hits, tookInMillis, tookHistogram.clone(), trips, openNodes,
+            rewards);
+    }
+
+    public static TestCaseStats readTestCaseStats(final StreamInput in) throws IOException {
+        final TestCaseStats stats = new TestCaseStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        count = in.readVLong();
+        failures = in.readVLong();
+        rejected = in.readVLong();
+        hits = in.readVLong();
+        tookInMillis = in.readVLong();
+        tookHistogram = new long[in.readVInt()];
+        for (int i = 0; i < tookHistogram.length; i++) {
+            tookHistogram[i] = in.readVLong();
+        }
+        trips = in.readVLong();
+        openNodes = in.readVLong();
+        rewards = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVLong(count);
+        out.writeVLong(failures);
+        out.writeVLong(rejected);
+        out.writeVLong(hits);
+        out.writeVLong(tookInMillis);
+        out.writeVInt(tookHistogram.length);
+        for (final long value : tookHistogram) {
+            out.writeVLong(value);
+        }
+        out.writeVLong(trips);
+        out.writeVLong(openNodes);
+        out.writeVLong(rewards);
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final long succeeded = count - failures;
+        builder.field("count", count);
+        builder.field("failures", failures);
+        if (rejected > 0) {
+            builder.field("rejected", rejected);
+        }
+        builder.field("hits", hits);
+        builder.field("avg_hits", succeeded > 0 ? (double) hits / succeeded : 0.0);
+        if (rewards > 0) {
+            builder.field("rewards", rewards);
+        }
+        builder.startObject("took");
+        builder.field("total_in_millis", tookInMillis);
+        builder.field("avg_in_millis", succeeded > 0 ? tookInMillis / succeeded : 0);
+        builder.field("p50_in_millis", getTookPercentile(50));
+        builder.field("p90_in_millis", getTookPercentile(90));
+        builder.field("p99_in_millis", getTookPercentile(99));
+        builder.endObject();
+        if (trips > 0 || openNodes > 0) {
+            builder.startObject("breaker");
+            builder.field("trips", trips);
+            builder.field("open_nodes", openNodes);
+            builder.endObject();
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,130 @@
+package org.codelibs.elasticsearch.abtest;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.abtest.service.AbTestService;
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AbTestClusterStateStoreTest {
+    static ElasticsearchClusterRunner runner;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild((number, settingsBuilder) -> {
+            settingsBuilder.put("http.cors.enabled", true);
+            settingsBuilder.put("index.number_of_replicas", 0);
+            settingsBuilder.put("abtest.store.type", "cluster_state");
+        }).build(newConfigs().ramIndexStore().numOfNode(2));
+        runner.ensureYellow();
+    }
+
+    @AfterClass
+    public static void afterClass() throws Exception {
+        runner.close();
+        runner.clean();
+    }
+
+    @Before
+    public void before() throws Exception {
+        runner.deleteIndex("_all");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_addTestCase() throws Exception {
+        final String index = "sample";
+        Curl.post(runner.masterNode(), "/" + index + "/_abtest/settings")
+            .body(getFileString("sample-settings.json")).execute();
+
+        // read from the other node
+        CurlResponse response = Curl.get(runner.getNode(1), "/" + index + "/_abtest/settings")
+            .execute();
+        final List<Map<String, Object>> testCases = (List) response.getContentAsMap().get("testcases");
+        assertEquals(2, testCases.size());
+        assertEquals("test1", testCases.get(0).get(AbTestService.TestCase.FIELD_TEST_NAME));
+        assertEquals(10, testCases.get(0).get(AbTestService.TestCase.FIELD_PERCENTAGE));
+        assertEquals("test2", testCases.get(1).get(AbTestService.TestCase.FIELD_TEST_NAME));
+        assertEquals(20, testCases.get(1).get(AbTestService.TestCase.FIELD_PERCENTAGE));
+    }
+
+    @Test
+    public void test_abtest() throws Exception {
+        final String index = "sample";
+        Curl.post(runner.masterNode(), "/" + index + "/_abtest/settings")
+            .body(getFileString("sample-settings.json")).execute();
+
+        createDummyIndex(index, 1);
+        createDummyIndex("index_a", 10);
+        createDummyIndex("index_b", 100);
+
+        for(int i=0; i<100; i++) {
+            CurlResponse response = Curl.get(runner.getNode(i % 2), "/" + index + "/_search")
+                .param("q", "*:*")
+                .param("ab_rt", String.valueOf(i))
+                .param("hash_rt", "false")
+                .execute();
+            final int total = (int)((Map)response.getContentAsMap().get("hits")).get("total");
+            if(i < 10) {
+                assertEquals(10, total);
+            } else if(i < 30) {
+                assertEquals(100, total);
+            } else {
+                assertEquals(1, total);
+            }
+        }
+
+        Curl.delete(runner.masterNode(), "/" + index + "/_abtest/settings").execute();
+        CurlResponse response = Curl.get(runner.getNode(1), "/" + index + "/_search")
+            .param("q", "*:*")
+            .param("ab_rt", "0")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(1, ((Map)response.getContentAsMap().get("hits")).get("total"));
+    }
+
+    protected void createDummyIndex(final String index, final int num) {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for(int i=0;i<num;i++) {
+            final IndexRequest indexRequest = new IndexRequest();
+            indexRequest.index(index).type("dummy").id(String.valueOf(i)).source("field1", "value1");
+            bulkRequest.add(indexRequest);
+        }
+        runner.client().bulk(bulkRequest).actionGet();
+        runner.refresh();
+    }
+
+    public String getFileString(final String fileName) throws IOException {
+        BufferedReader br = null;
+        final StringBuilder sb = new StringBuilder();
+        try {
+            br =
+                new BufferedReader(new InputStreamReader(this.getClass().getClassLoader()
+                    .getResourceAsStream(fileName)));
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+            }
+        } finally {
+            if (br != null) {
+                br.close();
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package org.codelibs.elasticsearch.abtest;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlRequest;
+import org.codelibs.elasticsearch.runner.net.CurlResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.node.Node;
+
+/**
+ * Load test which compares search latency with and without A/B routing on an embedded node.
+ * Searches are sent by HTTP, so both the REST filter and the action filter are included.
+ * Modes run alternately in each round to reduce drift, and the report is written as JSON.
+ *
+ * <pre>
+ * mvn -Ploadtest test-compile exec:exec -Dloadtest.threads=16
+ * </pre>
+ */
+public class AbTestLoadRunner {
+    private static final String INDEX = "sample";
+
+    private static final String[] MODES = { "baseline", "no_testsweet", "raw", "hashed" };
+
+    private final int threads = Integer.getInteger("loadtest.threads", 8);
+
+    private final int requests = Integer.getInteger("loadtest.requests", 10000);
+
+    private final int warmup = Integer.getInteger("loadtest.warmup", 2000);
+
+    private final int rounds = Integer.getInteger("loadtest.rounds", 3);
+
+    private final int docs = Integer.getInteger("loadtest.docs", 1000);
+
+    private final Path output = Paths.get(System.getProperty("loadtest.output", "target/loadtest-report.json"));
+
+    private ElasticsearchClusterRunner runner;
+
+    public static void main(final String[] args) throws Exception {
+        new AbTestLoadRunner().run();
+    }
+
+    public void run() throws Exception {
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild((number, settingsBuilder) -> {
+            settingsBuilder.put("index.number_of_replicas", 0);
+            settingsBuilder.put("index.number_of_shards", 1);
+        }).build(newConfigs().ramIndexStore().numOfNode(1));
+        runner.ensureYellow();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            setup();
+
+            final Map<String, List<long[]>> latencies = new LinkedHashMap<>();
+            final Map<String, Long> elapsed = new LinkedHashMap<>();
+            final Map<String, Integer> errors = new LinkedHashMap<>();
+            for (final String mode : MODES) {
+                latencies.put(mode, new ArrayList<>());
+                elapsed.put(mode, 0L);
+                errors.put(mode, 0);
+                execute(executor, mode, warmup, new AtomicInteger());
+            }
+            for (int round = 0; round < rounds; round++) {
+                for (final String mode : MODES) {
+                    final AtomicInteger errorCount = new AtomicInteger();
+                    final long start = System.nanoTime();
+                    latencies.get(mode).addAll(execute(executor, mode, requests, errorCount));
+                    elapsed.put(mode, elapsed.get(mode) + System.nanoTime() - start);
+                    errors.put(mode, errors.get(mode) + errorCount.get());
+                }
+            }
+
+            writeReport(latencies, elapsed, errors);
+        } finally {
+            executor.shutdownNow();
+            runner.close();
+            runner.clean();
+        }
+    }
+
+    protected void setup() throws IOException {
+        createIndex(INDEX);
+        createIndex("index_a");
+        createIndex("index_b");
+        final Node node = runner.masterNode();
+        final CurlResponse response = Curl.post(node, "/" + INDEX + "/_abtest/settings")
+            .body(getFileString("sample-settings.json")).execute();
+        if (response.getHttpStatusCode() != 200) {
+            throw new IllegalStateException("Failed to create a test sweet: " + response.getContentAsString());
+        }
+        runner.refresh();
+    }
+
+    protected void createIndex(final String index) {
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < docs; i++) {
+            bulkRequest.add(new IndexRequest(index, "dummy", String.valueOf(i)).source("field1", "value" + i % 10));
+        }
+        runner.client().bulk(bulkRequest).actionGet();
+        runner.refresh();
+    }
+
+    /**
+     * Sends requests from all threads and returns latencies in nanoseconds of each thread.
+     */
+    protected List<long[]> execute(final ExecutorService executor, final String mode, final int count,
+            final AtomicInteger errorCount) throws Exception {
+        final Node node = runner.masterNode();
+        final AtomicInteger sequence = new AtomicInteger();
+        final List<Future<long[]>> futures = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit((Callable<long[]>) () -> {
+                final long[] values = new long[count / threads];
+                for (int i = 0; i < values.length; i++) {
+                    // index_a has the same documents as sample but no test sweet
+                    final String index = "no_testsweet".equals(mode) ? "index_a" : INDEX;
+                    final CurlRequest request = Curl.get(node, "/" + index + "/_search").param("q", "field1:value1");
+                    final int seq = sequence.incrementAndGet();
+                    switch (mode) {
+                    case "no_testsweet":
+                        request.param("ab_rt", "user-" + seq);
+                        break;
+                    case "raw":
+                        request.param("ab_rt", String.valueOf(seq % 100)).param("hash_rt", "false");
+                        break;
+                    case "hashed":
+                        request.param("ab_rt", "user-" + seq);
+                        break;
+                    default:
+                        break;
+                    }
+                    final long start = System.nanoTime();
+                    try {
+                        if (request.execute().getHttpStatusCode() != 200) {
+                            errorCount.incrementAndGet();
+                        }
+                    } catch (final Exception e) {
+                        errorCount.incrementAndGet();
+                    }
+                    values[i] = System.nanoTime() - start;
+                }
+                return values;
+            }));
+        }
+        final List<long[]> results = new ArrayList<>(threads);
+        for (final Future<long[]> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    protected void writeReport(final Map<String, List<long[]>> latencies, final Map<String, Long> elapsed,
+            final Map<String, Integer> errors) throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+        builder.startObject();
+        builder.field("threads", threads);
+        builder.field("requests", requests);
+        builder.field("rounds", rounds);
+        builder.field("docs", docs);
+        builder.startObject("modes");
+        for (final Map.Entry<String, List<long[]>> entry : latencies.entrySet()) {
+            final String mode = entry.getKey();
+            final long[] values = entry.getValue().stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            builder.startObject(mode);
+            builder.field("count", values.length);
+            builder.field("errors", errors.get(mode));
+            builder.field("throughput", values.length * 1000000000.0 / elapsed.get(mode));
+            builder.field("p50_in_micros", percentile(values, 50) / 1000);
+            builder.field("p90_in_micros", percentile(values, 90) / 1000);
+            builder.field("p99_in_micros", percentile(values, 99) / 1000);
+            builder.field("max_in_micros", values.length > 0 ? values[values.length - 1] / 1000 : 0);
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.endObject();
+
+        final String report = builder.string();
+        System.out.println(report);
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        try (OutputStream out = Files.newOutputStream(output)) {
+            out.write(report.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    protected static long percentile(final long[] sorted, final double percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(sorted.length * percent / 100.0);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    protected String getFileString(final String fileName) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                getClass().getClassLoader().getResourceAsStream(fileName), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -3,9 +3,14 @@ package org.codelibs.elasticsearch.abtest;
 import org.codelibs.elasticsearch.abtest.service.AbTestService;
 import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
 import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlRequest;
 import org.codelibs.elasticsearch.runner.net.CurlResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -14,6 +19,7 @@ import org.junit.Test;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -66,6 +72,75 @@ public class AbTestPluginTest {
         assertEquals(20, testCases.get(1).get(AbTestService.TestCase.FIELD_PERCENTAGE));
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_rollback() throws Exception {
+        final String index = "sample";
+        updateSetting(index, "sample-settings.json");
+        updateSetting(index, "sample-buckets-settings.json");
+
+        Map<String, Object> map = Curl.get(runner.masterNode(), "/" + index + "/_abtest/settings")
+            .execute().getContentAsMap();
+        assertEquals(2, map.get("version"));
+        assertEquals(10000, map.get("buckets"));
+        assertEquals(Arrays.asList(1), map.get("history"));
+
+        Curl.post(runner.masterNode(), "/" + index + "/_abtest/settings/_rollback").execute();
+        map = Curl.get(runner.masterNode(), "/" + index + "/_abtest/settings").execute().getContentAsMap();
+        assertEquals(1, map.get("version"));
+        assertEquals(100, map.get("buckets"));
+        assertEquals(Arrays.asList(2), map.get("history"));
+
+        createDummyIndex(index, 1);
+        createDummyIndex("index_a", 10);
+        CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+            .param("q", "*:*")
+            .param("ab_rt", "5")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(10, ((Map) response.getContentAsMap().get("hits")).get("total"));
+
+        Curl.post(runner.masterNode(), "/" + index + "/_abtest/settings/_rollback").param("version", "2").execute();
+        map = Curl.get(runner.masterNode(), "/" + index + "/_abtest/settings").execute().getContentAsMap();
+        assertEquals(2, map.get("version"));
+        assertEquals(Arrays.asList(1), map.get("history"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_bulkSettings() throws Exception {
+        final String body = "{\"update\":{\"sample1\":" + getFileString("sample-settings.json")
+            + ",\"sample2\":" + getFileString("sample-buckets-settings.json") + "}}";
+        Map<String, Object> map = Curl.post(runner.masterNode(), "/_abtest/settings/_bulk").body(body)
+            .execute().getContentAsMap();
+        assertEquals(true, map.get("acknowledge"));
+        assertEquals(2, map.get("updated"));
+        runner.refresh();
+
+        map = Curl.get(runner.masterNode(), "/_abtest/settings").execute().getContentAsMap();
+        assertEquals(2, map.get("total"));
+        List<Map<String, Object>> testSweets = (List) map.get("testsweets");
+        assertEquals(2, testSweets.size());
+        for (final Map<String, Object> testSweet : testSweets) {
+            assertEquals(1, testSweet.get("version"));
+            assertEquals("fixed", testSweet.get("allocation"));
+        }
+
+        map = Curl.post(runner.masterNode(), "/_abtest/settings/_bulk")
+            .body("{\"update\":{\"sample1\":" + getFileString("sample-buckets-settings.json") + "},"
+                + "\"delete\":[\"sample2\"]}")
+            .execute().getContentAsMap();
+        assertEquals(true, map.get("acknowledge"));
+        runner.refresh();
+
+        map = Curl.get(runner.masterNode(), "/_abtest/settings").execute().getContentAsMap();
+        assertEquals(1, map.get("total"));
+        testSweets = (List) map.get("testsweets");
+        assertEquals("sample1", testSweets.get(0).get("testsweet"));
+        assertEquals(2, testSweets.get(0).get("version"));
+        assertEquals(10000, testSweets.get(0).get("buckets"));
+    }
+
     @Test
     public void test_abtest() throws Exception {
         final String index = "sample";
@@ -95,6 +170,384 @@ public class AbTestPluginTest {
         }
     }
 
+    @Test
+    public void test_abtest_stats() throws Exception {
+        final String index = "stats_sample";
+
+        updateSetting(index, "sample-settings.json");
+
+        createDummyIndex(index, 1);
+        createDummyIndex("index_a", 10);
+        createDummyIndex("index_b", 100);
+
+        for(int i=0; i<100; i++) {
+            Curl.get(runner.masterNode(), "/" + index + "/_search")
+                .param("q", "*:*")
+                .param("ab_rt", String.valueOf(i))
+                .param("hash_rt", "false")
+                .execute();
+        }
+
+        CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_abtest/stats").execute();
+        final Map<String, Object> testSweets = (Map) response.getContentAsMap().get("testsweets");
+        assertEquals(1, testSweets.size());
+        final Map<String, Object> testCases = (Map) ((Map) testSweets.get(index)).get("testcases");
+        final Map<String, Object> test1 = (Map) testCases.get("test1");
+        assertEquals(10, test1.get("count"));
+        assertEquals(0, test1.get("failures"));
+        assertEquals(100, test1.get("hits"));
+        assertEquals(10.0, test1.get("avg_hits"));
+        assertTrue((int) ((Map) test1.get("took")).get("p99_in_millis") >= 0);
+        final Map<String, Object> test2 = (Map) testCases.get("test2");
+        assertEquals(20, test2.get("count"));
+        assertEquals(2000, test2.get("hits"));
+        final Map<String, Object> defaultTest = (Map) testCases.get("_default");
+        assertEquals(70, defaultTest.get("count"));
+        assertEquals(70, defaultTest.get("hits"));
+
+        response = Curl.get(runner.masterNode(), "/_abtest/stats").execute();
+        assertTrue(((Map) response.getContentAsMap().get("testsweets")).containsKey(index));
+
+        // metrics are evicted with the routing table of a deleted test sweet
+        Curl.delete(runner.masterNode(), "/" + index + "/_abtest/settings").execute();
+        response = Curl.get(runner.masterNode(), "/_abtest/stats").execute();
+        assertFalse(((Map) response.getContentAsMap().get("testsweets")).containsKey(index));
+    }
+
+    @Test
+    public void test_abtest_feedback() throws Exception {
+        final String index = "feedback_sample";
+
+        updateSetting(index, "sample-settings.json");
+        createDummyIndex(index, 1);
+
+        CurlResponse response = Curl.post(runner.masterNode(), "/_abtest/feedback")
+            .body("{\"events\":[{\"testsweet\":\"" + index + "\",\"test_name\":\"test1\",\"type\":\"click\"},"
+                + "{\"testsweet\":\"" + index + "\",\"test_name\":\"test1\",\"type\":\"conversion\",\"value\":2},"
+                + "{\"testsweet\":\"" + index + "\",\"test_name\":\"unknown\"}]}")
+            .execute();
+        assertEquals(2, response.getContentAsMap().get("accepted"));
+        assertEquals(1, response.getContentAsMap().get("ignored"));
+
+        response = Curl.get(runner.masterNode(), "/" + index + "/_abtest/stats").execute();
+        final Map<String, Object> testCases =
+            (Map) ((Map) ((Map) response.getContentAsMap().get("testsweets")).get(index)).get("testcases");
+        assertEquals(3, ((Map) testCases.get("test1")).get("rewards"));
+    }
+
+    @Test
+    public void test_abtest_responseHeader() throws Exception {
+        final String index = "sample";
+
+        updateSetting(index, "sample-settings.json");
+
+        createDummyIndex(index, 1);
+        createDummyIndex("index_a", 10);
+        createDummyIndex("index_b", 100);
+
+        SearchRequest request = new SearchRequest(index);
+        request.putInContext("ab_rt", "15");
+        request.putInContext("hash_rt", "false");
+        SearchResponse response = runner.client().search(request).actionGet();
+        assertEquals(100, response.getHits().getTotalHits());
+        assertEquals("sample/test2", response.getHeader("abtest.variant"));
+        assertEquals("index_b", response.getHeader("abtest.index"));
+
+        request = new SearchRequest(index);
+        request.putInContext("ab_rt", "50");
+        request.putInContext("hash_rt", "false");
+        response = runner.client().search(request).actionGet();
+        assertEquals(1, response.getHits().getTotalHits());
+        assertEquals("sample/_default", response.getHeader("abtest.variant"));
+        assertEquals("sample", response.getHeader("abtest.index"));
+
+        response = runner.client().prepareSearch(index).execute().actionGet();
+        assertNull(response.getHeader("abtest.variant"));
+    }
+
+    @Test
+    public void test_abtest_interleave() throws Exception {
+        final String index = "sample";
+
+        updateSetting(index, "sample-interleave-settings.json");
+
+        createDummyIndex(index, 3);
+        createDummyIndex("index_a", 10);
+
+        CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+            .param("q", "*:*")
+            .param("ab_rt", "user1")
+            .execute();
+        final Map<String, Object> hits = (Map) response.getContentAsMap().get("hits");
+        assertEquals(3, hits.get("total"));
+        final List<Map<String, Object>> hitList = (List) hits.get("hits");
+        assertEquals(10, hitList.size());
+        int controlCount = 0;
+        for (final Map<String, Object> hit : hitList) {
+            final List<Object> team = (List) ((Map) hit.get("fields")).get("_abtest_team");
+            if ("control".equals(team.get(0))) {
+                assertEquals(index, hit.get("_index"));
+                controlCount++;
+            } else {
+                assertEquals("candidate", team.get(0));
+                assertEquals("index_a", hit.get("_index"));
+            }
+        }
+        assertTrue(controlCount > 0);
+        assertTrue(controlCount <= 3);
+    }
+
+    @Test
+    public void test_abtest_shadow() throws Exception {
+        final String index = "shadow_sample";
+
+        updateSetting(index, "sample-shadow-settings.json");
+
+        createDummyIndex(index, 3);
+        createDummyIndex("index_a", 10);
+
+        for(int i=0; i<5; i++) {
+            CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+                .param("q", "*:*")
+                .param("ab_rt", "user" + i)
+                .execute();
+            assertEquals(3, ((Map) response.getContentAsMap().get("hits")).get("total"));
+        }
+
+        Map<String, Object> shadow = null;
+        for(int i=0; i<50; i++) {
+            CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_abtest/stats").execute();
+            final Map<String, Object> testCases =
+                (Map) ((Map) ((Map) response.getContentAsMap().get("testsweets")).get(index)).get("testcases");
+            shadow = (Map) testCases.get("test1#shadow");
+            if (shadow != null && Integer.valueOf(5).equals(shadow.get("count"))) {
+                break;
+            }
+            Thread.sleep(100L);
+        }
+        assertNotNull(shadow);
+        assertEquals(5, shadow.get("count"));
+        assertEquals(50, shadow.get("hits"));
+    }
+
+    @Test
+    public void test_abtest_params() throws Exception {
+        final String index = "sample";
+
+        updateSetting(index, "sample-params-settings.json");
+
+        createDummyIndex(index, 10);
+
+        for(int i=0; i<100; i+=99) {
+            CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+                .param("q", "*:*")
+                .param("ab_rt", String.valueOf(i))
+                .param("hash_rt", "false")
+                .execute();
+            final Map<String, Object> hits = (Map) response.getContentAsMap().get("hits");
+            assertEquals(10, hits.get("total"));
+            assertEquals(i < 50 ? 2 : 10, ((List) hits.get("hits")).size());
+        }
+    }
+
+    @Test
+    public void test_abtest_targeting() throws Exception {
+        final String index = "sample";
+
+        updateSetting(index, "sample-targeting-settings.json");
+
+        createDummyIndex(index, 1);
+        createDummyIndex("index_a", 10);
+
+        final String[][] params = { { "ja", null }, { "en", "bot" }, { "fr", null }, { null, null } };
+        final int[] totals = { 10, 1, 1, 1 };
+        for(int i=0; i<params.length; i++) {
+            final CurlRequest request = Curl.get(runner.masterNode(), "/" + index + "/_search")
+                .param("q", "*:*")
+                .param("ab_rt", "0")
+                .param("hash_rt", "false");
+            if(params[i][0] != null) {
+                request.param("ab_locale", params[i][0]);
+            }
+            if(params[i][1] != null) {
+                request.param("ab_device", params[i][1]);
+            }
+            final CurlResponse response = request.execute();
+            assertEquals(totals[i], ((Map) response.getContentAsMap().get("hits")).get("total"));
+        }
+    }
+
+    @Test
+    public void test_abtest_cache() throws Exception {
+        final String index = "sample";
+
+        updateSetting(index, "sample-settings.json");
+
+        createDummyIndex(index, 1);
+        createDummyIndex("index_a", 10);
+        createDummyIndex("index_b", 100);
+
+        CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+            .param("q", "*:*")
+            .param("ab_rt", "0")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(10, ((Map) response.getContentAsMap().get("hits")).get("total"));
+
+        response = Curl.get(runner.masterNode(), "/" + index + "/_abtest/stats")
+            .param("cache", "true")
+            .execute();
+        final Map<String, Object> caches = (Map) response.getContentAsMap().get("caches");
+        final Map<String, Object> indexA = (Map) caches.get("index_a");
+        assertEquals(Arrays.asList(index + "/test1"), indexA.get("testcases"));
+        assertNotNull(indexA.get("query_cache"));
+        assertNotNull(indexA.get("filter_cache"));
+        assertEquals(Arrays.asList(index + "/_default"), ((Map) caches.get(index)).get("testcases"));
+    }
+
+    @Test
+    public void test_abtest_buckets() throws Exception {
+        final String index = "sample";
+        final String indexA = "index_a";
+        final String indexB = "index_b";
+
+        updateSetting(index, "sample-buckets-settings.json");
+
+        createDummyIndex(index, 1);
+        createDummyIndex(indexA, 10);
+        createDummyIndex(indexB, 100);
+
+        final int[] rts = { 0, 9, 10, 2009, 2010, 9999, 10000 };
+        final int[] totals = { 10, 10, 100, 100, 1, 1, 1 };
+        for(int i=0; i<rts.length; i++) {
+            CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+                .param("q", "*:*")
+                .param("ab_rt", String.valueOf(rts[i]))
+                .param("hash_rt", "false")
+                .execute();
+            final int total = (int)((Map)response.getContentAsMap().get("hits")).get("total");
+            assertEquals("ab_rt=" + rts[i], totals[i], total);
+        }
+    }
+
+    @Test
+    public void test_abtest_multiIndex() throws Exception {
+        final String index = "sample";
+
+        updateSetting(index, "sample-settings.json");
+
+        createDummyIndex(index, 1);
+        createDummyIndex("other", 1000);
+        createDummyIndex("index_a", 10);
+        createDummyIndex("index_b", 100);
+        runner.client().admin().indices().prepareAliases().addAlias(index, "sample_alias").execute().actionGet();
+
+        CurlResponse response = Curl.get(runner.masterNode(), "/" + index + ",other/_search")
+            .param("q", "*:*")
+            .param("ab_rt", "5")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(1010, ((Map)response.getContentAsMap().get("hits")).get("total"));
+
+        response = Curl.get(runner.masterNode(), "/sample_alias,other/_search")
+            .param("q", "*:*")
+            .param("ab_rt", "15")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(1100, ((Map)response.getContentAsMap().get("hits")).get("total"));
+
+        response = Curl.get(runner.masterNode(), "/sample*/_search")
+            .param("q", "*:*")
+            .param("ab_rt", "50")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(1, ((Map)response.getContentAsMap().get("hits")).get("total"));
+    }
+
+    @Test
+    public void test_abtest_header() throws Exception {
+        final String index = "sample";
+
+        updateSetting(index, "sample-settings.json");
+
+        createDummyIndex(index, 1);
+        createDummyIndex("index_a", 10);
+        createDummyIndex("index_b", 100);
+
+        CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+            .header("X-AbTest-Rt", "5")
+            .param("q", "*:*")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(10, ((Map)response.getContentAsMap().get("hits")).get("total"));
+
+        response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+            .header("Cookie", "foo=bar; ab_rt=15")
+            .param("q", "*:*")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(100, ((Map)response.getContentAsMap().get("hits")).get("total"));
+
+        // a trailing slash is still a search path
+        response = Curl.get(runner.masterNode(), "/" + index + "/_search/")
+            .param("q", "*:*")
+            .param("ab_rt", "5")
+            .param("hash_rt", "false")
+            .execute();
+        assertEquals(10, ((Map)response.getContentAsMap().get("hits")).get("total"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_abtest_unknownTestSweet() throws Exception {
+        final String index = "plain";
+
+        createDummyIndex(index, 3);
+
+        // searched twice, by loading the missing test sweet and by the cached absence
+        for(int i=0; i<2; i++) {
+            final CurlResponse response = Curl.get(runner.masterNode(), "/" + index + "/_search")
+                .param("q", "*:*")
+                .param("testsweet", index)
+                .param("ab_rt", "5")
+                .param("hash_rt", "false")
+                .execute();
+            assertEquals(3, ((Map)response.getContentAsMap().get("hits")).get("total"));
+        }
+    }
+
+    @Test
+    public void test_abtest_msearch() throws Exception {
+        final String index = "sample";
+
+        updateSetting(index, "sample-settings.json");
+
+        createDummyIndex(index, 1);
+        createDummyIndex("other", 1000);
+        createDummyIndex("index_a", 10);
+        createDummyIndex("index_b", 100);
+
+        final String body = "{\"index\":\"" + index + "\"}\n{\"query\":{\"match_all\":{}}}\n"
+            + "{\"index\":\"other\"}\n{\"query\":{\"match_all\":{}}}\n";
+        CurlResponse response = Curl.post(runner.masterNode(), "/_msearch")
+            .param("ab_rt", "5")
+            .param("hash_rt", "false")
+            .body(body)
+            .execute();
+        final List<Map<String, Object>> responses = (List) response.getContentAsMap().get("responses");
+        assertEquals(10, ((Map) responses.get(0).get("hits")).get("total"));
+        assertEquals(1000, ((Map) responses.get(1).get("hits")).get("total"));
+
+        // headers have a slot per item, which is empty if the item is not routed
+        final MultiSearchRequest request = new MultiSearchRequest()
+            .add(new SearchRequest("other")).add(new SearchRequest(index));
+        request.putInContext("ab_rt", "5");
+        request.putInContext("hash_rt", "false");
+        final MultiSearchResponse multiSearchResponse = runner.client().multiSearch(request).actionGet();
+        assertEquals(";sample/test1", multiSearchResponse.getHeader("abtest.variant"));
+        assertEquals(";index_a", multiSearchResponse.getHeader("abtest.index"));
+    }
+
     protected void updateSetting(final String index, final String json) throws Exception {
         Curl.post(runner.masterNode(), "/" + index + "/_abtest/settings")
             .body(getFileString(json)).execute();
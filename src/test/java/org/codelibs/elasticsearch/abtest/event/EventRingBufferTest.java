@@ -0,0 +1,59 @@
+package org.codelibs.elasticsearch.abtest.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class EventRingBufferTest {
+
+    @Test
+    public void test_offerAndDrain() {
+        final EventRingBuffer<Integer> buffer = new EventRingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(1, buffer.dropped());
+        assertEquals(4, buffer.size());
+
+        final List<Integer> drained = new ArrayList<>();
+        assertEquals(3, buffer.drain(drained::add, 3));
+        assertTrue(buffer.offer(5));
+        assertEquals(2, buffer.drain(drained::add, 10));
+        assertEquals("[0, 1, 2, 3, 5]", drained.toString());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void test_concurrentProducers() throws Exception {
+        final EventRingBuffer<Long> buffer = new EventRingBuffer<>(1024);
+        final int producers = 4;
+        final int count = 100000;
+        final CountDownLatch latch = new CountDownLatch(producers);
+        for (int i = 0; i < producers; i++) {
+            new Thread(() -> {
+                for (long j = 0; j < count; j++) {
+                    buffer.offer(j);
+                }
+                latch.countDown();
+            }).start();
+        }
+
+        final AtomicLong drained = new AtomicLong();
+        while (latch.getCount() > 0) {
+            buffer.drain(e -> drained.incrementAndGet(), 100);
+        }
+        while (buffer.drain(e -> drained.incrementAndGet(), 100) > 0) {
+        }
+        assertEquals((long) producers * count, drained.get() + buffer.dropped());
+    }
+}
@@ -0,0 +1,41 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BucketHashTest {
+
+    @Test
+    public void test_bucket() {
+        final int buckets = 100;
+        final int[] counts = new int[buckets];
+        final int num = 100000;
+        for (int i = 0; i < num; i++) {
+            final int bucket = BucketHash.bucket("user" + i, 0, buckets);
+            assertTrue(0 <= bucket && bucket < buckets);
+            counts[bucket]++;
+        }
+        for (final int count : counts) {
+            // expected 1000 per bucket
+            assertTrue(String.valueOf(count), 800 < count && count < 1200);
+        }
+    }
+
+    @Test
+    public void test_salt() {
+        assertEquals(BucketHash.hash("user1", 0), BucketHash.hash("user1", 0));
+        assertNotEquals(BucketHash.hash("user1", 0), BucketHash.hash("user1", 1));
+
+        // buckets of different salts are independent
+        int same = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (BucketHash.bucket("user" + i, 1, 10) == BucketHash.bucket("user" + i, 2, 10)) {
+                same++;
+            }
+        }
+        assertTrue(String.valueOf(same), 800 < same && same < 1200);
+    }
+}
@@ -0,0 +1,138 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+import org.junit.Test;
+
+public class RoutingTableTest {
+
+    @Test
+    public void test_route() {
+        final List<TestCase> testCases = new ArrayList<>();
+        testCases.add(new TestCase("test1", "index_a", 0.1));
+        testCases.add(new TestCase("test2", "index_b", 20));
+        final RoutingTable table = RoutingTable.build(TestSweet.builder("sample").buckets(10000).testCases(testCases).build(), 0L);
+
+        assertEquals(10000, table.buckets());
+        assertNull(table.route(-1));
+        assertEquals("index_a", table.route(0));
+        assertEquals("index_a", table.route(9));
+        assertEquals("index_b", table.route(10));
+        assertEquals("index_b", table.route(2009));
+        assertNull(table.route(2010));
+        assertNull(table.route(9999));
+        assertNull(table.route(10000));
+    }
+
+    @Test
+    public void test_layers() {
+        final TestSweet testSweet = TestSweet.parse("sample", TestSweetTest.layeredSource("ranking", "boost"));
+        final RoutingTable table = RoutingTable.build(testSweet, 0L);
+        assertEquals(2, table.layers().length);
+        assertEquals("ranking".hashCode(), table.layers()[0].salt());
+
+        final List<Variant> variants = new ArrayList<>();
+        variants.add(table.select(50));
+        variants.add(table.layers()[0].select(0));
+        variants.add(table.layers()[1].select(0));
+        assertEquals("sample", variants.get(0).testSweetName);
+        assertEquals(Variant.DEFAULT_TEST_NAME, variants.get(0).testName);
+        assertEquals("ranking:test1", variants.get(1).testName);
+        assertEquals("sample", variants.get(1).testSweetName);
+        assertEquals("boost:test1", variants.get(2).testName);
+        assertEquals("ranking:_default", table.layers()[0].select(50).testName);
+        // the first layer which rewrites the index wins
+        assertEquals("index_b", Variant.index(variants, 0, "sample"));
+
+        variants.set(0, table.select(0));
+        assertEquals("index_a", Variant.index(variants, 0, "sample"));
+    }
+
+    @Test
+    public void test_liveIndices() {
+        final TestSweet testSweet = TestSweet.parse("sample", TestSweetTest.layeredSource("ranking", "boost"));
+        assertEquals(new HashSet<>(Arrays.asList("index_a", "index_b", "sample")),
+            RoutingTable.build(testSweet, 0L).liveIndices());
+        assertEquals(0, RoutingTable.EMPTY.liveIndices().size());
+        assertEquals(0, RoutingTable.EMPTY.layers().length);
+        assertTrue(RoutingTable.EMPTY.isEmpty());
+    }
+
+    @Test
+    public void test_ramp() {
+        final Map<String, Object> test1 = new HashMap<>();
+        test1.put("test_name", "test1");
+        test1.put("index", "index_a");
+        test1.put("percentage", 50);
+        test1.put("ramp", Arrays.asList(step(100L, 1), step("1970-01-01T00:00:00.200Z", 5), step(300L, 50)));
+        final Map<String, Object> test2 = new HashMap<>();
+        test2.put("test_name", "test2");
+        test2.put("index", "index_b");
+        test2.put("percentage", 10);
+        final TestSweet testSweet = TestSweet.parse("sample", Arrays.asList(test1, test2));
+
+        RoutingTable table = RoutingTable.build(testSweet, 50L);
+        assertNull(table.route(0));
+        assertEquals("index_b", table.route(50));
+        assertEquals(100L, table.nextRampTime());
+
+        table = RoutingTable.build(testSweet, 100L);
+        assertEquals("index_a", table.route(0));
+        assertNull(table.route(1));
+        assertEquals(200L, table.nextRampTime());
+
+        table = RoutingTable.build(testSweet, 250L);
+        assertEquals("index_a", table.route(0));
+        assertEquals("index_a", table.route(4));
+        assertNull(table.route(5));
+        assertEquals("index_b", table.route(59));
+
+        table = RoutingTable.build(testSweet, 300L);
+        assertEquals("index_a", table.route(49));
+        assertEquals("index_b", table.route(50));
+        assertEquals(Long.MAX_VALUE, table.nextRampTime());
+        assertTrue(testSweet.equals(TestSweet.parse("sample", testSweet.source())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_rampOverPercentage() {
+        final Map<String, Object> test1 = new HashMap<>();
+        test1.put("test_name", "test1");
+        test1.put("index", "index_a");
+        test1.put("percentage", 10);
+        test1.put("ramp", Arrays.asList(step(100L, 20)));
+        TestSweet.parse("sample", Arrays.asList(test1));
+    }
+
+    private static Map<String, Object> step(final Object at, final double percentage) {
+        final Map<String, Object> step = new HashMap<>();
+        step.put("at", at);
+        step.put("percentage", percentage);
+        return step;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_tooFinePercentage() {
+        final List<TestCase> testCases = new ArrayList<>();
+        testCases.add(new TestCase("test1", "index_a", 0.1));
+        TestSweet.builder("sample").buckets(100).testCases(testCases).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_tooManyTestCases() {
+        final List<TestCase> testCases = new ArrayList<>();
+        testCases.add(new TestCase("test1", "index_a", 60));
+        testCases.add(new TestCase("test2", "index_b", 50));
+        TestSweet.builder("sample").buckets(100).testCases(testCases).build();
+    }
+}
@@ -0,0 +1,55 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+public class SearchOverlayTest {
+
+    @Test
+    public void test_apply() {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("max_size", 20);
+        params.put("terminate_after", 1000);
+        params.put("search_type", "dfs_query_then_fetch");
+        params.put("request_cache", true);
+        final SearchOverlay overlay = SearchOverlay.parse(params);
+
+        final SearchRequest searchRequest = new SearchRequest("sample").source("{\"size\":50}");
+        overlay.apply(searchRequest);
+        assertEquals(SearchType.DFS_QUERY_THEN_FETCH, searchRequest.searchType());
+        assertEquals(Boolean.TRUE, searchRequest.queryCache());
+        final Map<String, Object> extraSource = XContentHelper.convertToMap(searchRequest.extraSource(), false).v2();
+        assertEquals(20, extraSource.get("size"));
+        assertEquals(1000, extraSource.get("terminate_after"));
+
+        // a smaller size is kept
+        final SearchRequest smallRequest = new SearchRequest("sample").extraSource("{\"size\":5}");
+        overlay.apply(smallRequest);
+        assertEquals(5, XContentHelper.convertToMap(smallRequest.extraSource(), false).v2().get("size"));
+    }
+
+    @Test
+    public void test_source() {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("timeout", "100ms");
+        params.put("preference", "_local");
+        final Map<String, Object> source = SearchOverlay.parse(params).source();
+        assertEquals(params, source);
+        assertNull(source.get("max_size"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_unknownParam() {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("routing", "1");
+        SearchOverlay.parse(params);
+    }
+}
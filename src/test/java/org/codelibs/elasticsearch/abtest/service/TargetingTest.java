@@ -0,0 +1,70 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.junit.Test;
+
+public class TargetingTest {
+
+    @Test
+    public void test_matches() {
+        final Map<String, Object> rules = new HashMap<>();
+        rules.put("ab_locale", Arrays.asList("ja", "en"));
+        rules.put("X-Device", Collections.singletonMap(Targeting.FIELD_NOT, "bot"));
+        final Targeting targeting = Targeting.compile(rules);
+
+        final SearchRequest request = new SearchRequest();
+        assertFalse(targeting.matches(request, null));
+        request.putInContext("ab_locale", "en");
+        assertTrue(targeting.matches(request, null));
+        request.putInContext("X-Device", "bot");
+        assertFalse(targeting.matches(request, null));
+        request.putInContext("X-Device", "mobile");
+        assertTrue(targeting.matches(request, null));
+        request.putInContext("ab_locale", "fr");
+        assertFalse(targeting.matches(request, null));
+
+        // a sub request of a multi search falls back to the parent
+        final MultiSearchRequest parent = new MultiSearchRequest();
+        parent.putInContext("ab_locale", "ja");
+        assertTrue(targeting.matches(new SearchRequest(), parent));
+
+        assertTrue(Targeting.ALL.matches(null, null));
+        assertFalse(targeting.matches(null, null));
+    }
+
+    @Test
+    public void test_parse() {
+        final Map<String, Object> rules = new HashMap<>();
+        rules.put("ab_locale", Arrays.asList("ja", "en"));
+        final Map<String, Object> source = new HashMap<>();
+        source.put("testcases", Collections.emptyList());
+        source.put("targeting", rules);
+        final TestSweet testSweet = TestSweet.parse("sample", source);
+        assertEquals(Arrays.asList("ab_locale"), testSweet.targeting.keys());
+        assertEquals(Arrays.asList("en", "ja"), testSweet.targeting.source().get("ab_locale"));
+
+        final TestSweet published = TestSweet.publish(null, testSweet, 5);
+        assertEquals(published, TestSweet.parse("sample", published.source()));
+        assertTrue(RoutingTable.build(published, 0L).targeting() == published.targeting);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_noValues() {
+        Targeting.compile(Collections.singletonMap("ab_locale", Collections.emptyList()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_unknownOperator() {
+        Targeting.compile(Collections.singletonMap("ab_locale", Collections.singletonMap("in", "ja")));
+    }
+}
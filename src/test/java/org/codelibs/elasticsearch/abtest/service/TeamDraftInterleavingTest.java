@@ -0,0 +1,57 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TeamDraftInterleavingTest {
+
+    @Test
+    public void test_interleave() {
+        final String[] control = { "a", "b", "c", "d" };
+        final String[] candidate = { "b", "e", "a", "f" };
+        for (long seed = 0; seed < 100; seed++) {
+            final int[] picks = TeamDraftInterleaving.interleave(control, candidate, seed);
+            assertEquals(4, picks.length);
+
+            final Set<String> keys = new HashSet<>();
+            int controlCount = 0;
+            int candidateCount = 0;
+            for (final int pick : picks) {
+                final String key = pick > 0 ? control[pick - 1] : candidate[-pick - 1];
+                assertTrue(keys.add(key));
+                if (pick > 0) {
+                    controlCount++;
+                } else {
+                    candidateCount++;
+                }
+            }
+            assertTrue(Math.abs(controlCount - candidateCount) <= 1);
+            assertArrayEquals(picks, TeamDraftInterleaving.interleave(control, candidate, seed));
+        }
+    }
+
+    @Test
+    public void test_interleave_empty() {
+        assertArrayEquals(new int[] { 1, 2 }, TeamDraftInterleaving.interleave(new String[] { "a", "b" }, new String[0], 0));
+        assertArrayEquals(new int[] { -1 }, TeamDraftInterleaving.interleave(new String[0], new String[] { "a" }, 0));
+        assertArrayEquals(new int[0], TeamDraftInterleaving.interleave(new String[0], new String[0], 0));
+    }
+
+    @Test
+    public void test_interleave_sameLists() {
+        final String[] keys = { "a", "b", "c" };
+        final int[] picks = TeamDraftInterleaving.interleave(keys, keys, 1);
+        assertEquals(3, picks.length);
+        final Set<String> picked = new HashSet<>();
+        for (final int pick : picks) {
+            picked.add(keys[Math.abs(pick) - 1]);
+        }
+        assertEquals(3, picked.size());
+    }
+}
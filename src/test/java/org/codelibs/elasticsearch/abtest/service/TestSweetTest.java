@@ -0,0 +1,162 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.abtest.service.AbTestService.TestCase;
+import org.junit.Test;
+
+public class TestSweetTest {
+
+    @Test
+    public void test_publish() {
+        TestSweet testSweet = TestSweet.publish(null, testSweet("index_a"), 2);
+        assertEquals(1L, testSweet.version);
+        assertEquals(0, testSweet.history.size());
+
+        testSweet = TestSweet.publish(testSweet, testSweet("index_b"), 2);
+        testSweet = TestSweet.publish(testSweet, testSweet("index_c"), 2);
+        testSweet = TestSweet.publish(testSweet, testSweet("index_d"), 2);
+        assertEquals(4L, testSweet.version);
+        assertEquals(2, testSweet.history.size());
+        assertEquals(3L, testSweet.history.get(0).version);
+        assertEquals("index_c", testSweet.history.get(0).testCases.get(0).testIndexName);
+        assertEquals(2L, testSweet.history.get(1).version);
+
+        assertEquals(testSweet, TestSweet.parse("sample", testSweet.source()));
+    }
+
+    @Test
+    public void test_rollback() {
+        TestSweet testSweet = TestSweet.publish(null, testSweet("index_a"), 5);
+        testSweet = TestSweet.publish(testSweet, testSweet("index_b"), 5);
+        testSweet = TestSweet.publish(testSweet, testSweet("index_c"), 5);
+
+        testSweet = testSweet.rollback(-1L, 5);
+        assertEquals(2L, testSweet.version);
+        assertEquals("index_b", testSweet.testCases.get(0).testIndexName);
+        assertEquals(3L, testSweet.history.get(0).version);
+        assertEquals(1L, testSweet.history.get(1).version);
+
+        testSweet = testSweet.rollback(1L, 5);
+        assertEquals(1L, testSweet.version);
+        assertEquals("index_a", testSweet.testCases.get(0).testIndexName);
+
+        testSweet = TestSweet.publish(testSweet, testSweet("index_d"), 5);
+        assertEquals(4L, testSweet.version);
+        assertEquals(3, testSweet.history.size());
+    }
+
+    @Test
+    public void test_reallocate() {
+        final List<TestCase> testCases = new ArrayList<>();
+        testCases.add(new TestCase("test1", "index_a", 25));
+        testCases.add(new TestCase("test2", "index_b", 25));
+        final TestSweet testSweet = TestSweet.builder("sample").buckets(100).allocation(TestSweet.ALLOCATION_THOMPSON)
+            .testCases(testCases).version(1L).build();
+
+        final Map<String, Integer> bucketSizes = new HashMap<>();
+        bucketSizes.put("test1", 10);
+        bucketSizes.put("test2", 40);
+        final TestSweet reallocated = TestSweet.publish(testSweet, testSweet.reallocate(bucketSizes), 5);
+        assertEquals(2L, reallocated.version);
+        assertEquals(TestSweet.ALLOCATION_THOMPSON, reallocated.allocation);
+        assertEquals(0, reallocated.testCases.get(0).from);
+        assertEquals(10, reallocated.testCases.get(0).to);
+        assertEquals(10, reallocated.testCases.get(1).from);
+        assertEquals(50, reallocated.testCases.get(1).to);
+        // the previous version is not changed
+        assertEquals(25, testSweet.testCases.get(1).from);
+    }
+
+    @Test
+    public void test_layers() {
+        final TestSweet testSweet = TestSweet.parse("sample", layeredSource("ranking", "boost"));
+        assertEquals(2, testSweet.layers.size());
+        assertEquals("ranking", testSweet.layers.get(0).name);
+        assertEquals("ranking".hashCode(), testSweet.layers.get(0).salt);
+        assertEquals("index_b", testSweet.layers.get(0).testCases.get(0).testIndexName);
+
+        final TestSweet published = TestSweet.publish(null, testSweet, 5);
+        assertEquals(2, published.layers.size());
+        assertEquals(published, TestSweet.parse("sample", published.source()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_layersWithSameName() {
+        TestSweet.parse("sample", layeredSource("ranking", "ranking"));
+    }
+
+    @Test
+    public void test_warmUp() {
+        final Map<String, Object> query = new HashMap<>();
+        query.put("query", new HashMap<>(Collections.singletonMap("match_all", new HashMap<>())));
+        final Map<String, Object> source = new HashMap<>();
+        source.put("testcases", Arrays.asList(testCase("test1", "index_a", 10)));
+        source.put("warmup", Arrays.asList(query));
+        final TestSweet testSweet = TestSweet.parse("sample", source);
+        assertEquals(1, testSweet.warmUpQueries.size());
+
+        final TestSweet published = TestSweet.publish(TestSweet.publish(null, testSweet, 5), testSweet("index_b"), 5);
+        assertEquals(0, published.warmUpQueries.size());
+        assertEquals(query, published.rollback(-1L, 5).warmUpQueries.get(0));
+        assertEquals(published, TestSweet.parse("sample", published.source()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_warmUpNotArray() {
+        final Map<String, Object> source = new HashMap<>();
+        source.put("testcases", Arrays.asList(testCase("test1", "index_a", 10)));
+        source.put("warmup", "match_all");
+        TestSweet.parse("sample", source);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_rollbackWithoutHistory() {
+        TestSweet.publish(null, testSweet("index_a"), 5).rollback(-1L, 5);
+    }
+
+    static Map<String, Object> layeredSource(final String... layerNames) {
+        final List<Map<String, Object>> layers = new ArrayList<>();
+        for (int i = 0; i < layerNames.length; i++) {
+            final Map<String, Object> layer = new HashMap<>();
+            layer.put("name", layerNames[i]);
+            layer.put("testcases", Arrays.asList(testCase("test1", i == 0 ? "index_b" : "sample", 50)));
+            layers.add(layer);
+        }
+        final Map<String, Object> source = new HashMap<>();
+        source.put("testcases", Arrays.asList(testCase("test1", "index_a", 10)));
+        source.put("layers", layers);
+        return source;
+    }
+
+    private static Map<String, Object> testCase(final String testName, final String index, final int percentage) {
+        final Map<String, Object> testCase = new HashMap<>();
+        testCase.put("test_name", testName);
+        testCase.put("index", index);
+        testCase.put("percentage", percentage);
+        return testCase;
+    }
+
+    @Test
+    public void test_buildCopiesTestCases() {
+        final TestCase testCase = new TestCase("test1", "index_a", 10);
+        final TestSweet testSweet = TestSweet.builder("sample").testCases(Arrays.asList(testCase)).build();
+        assertEquals(-1, testCase.from);
+        assertEquals(-1, testCase.to);
+        assertEquals(0, testSweet.testCases.get(0).from);
+        assertEquals(10, testSweet.testCases.get(0).to);
+    }
+
+    private static TestSweet testSweet(final String index) {
+        final List<TestCase> testCases = new ArrayList<>();
+        testCases.add(new TestCase("test1", index, 10));
+        return TestSweet.builder("sample").testCases(testCases).build();
+    }
+}
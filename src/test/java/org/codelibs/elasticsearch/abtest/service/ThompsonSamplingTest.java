@@ -0,0 +1,29 @@
+package org.codelibs.elasticsearch.abtest.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ThompsonSamplingTest {
+
+    @Test
+    public void test_winProbabilities() {
+        final long[] trials = { 1000, 1000, 1000 };
+        final long[] rewards = { 100, 130, 90 };
+        final double[] probabilities = ThompsonSampling.winProbabilities(trials, rewards, 10000, 1L);
+        assertEquals(1.0, probabilities[0] + probabilities[1] + probabilities[2], 1e-9);
+        assertTrue(probabilities[1] > 0.9);
+
+        // same inputs, same result
+        assertArrayEquals(probabilities, ThompsonSampling.winProbabilities(trials, rewards, 10000, 1L), 0);
+    }
+
+    @Test
+    public void test_allocate() {
+        assertArrayEquals(new int[] { 6, 79, 5 }, ThompsonSampling.allocate(new double[] { 0.0192, 0.9799, 0.0009 }, 90, 5));
+        assertArrayEquals(new int[] { 25, 25 }, ThompsonSampling.allocate(new double[] { 0.5, 0.5 }, 50, 5));
+        assertArrayEquals(new int[] { 1, 1, 0 }, ThompsonSampling.allocate(new double[] { 0.4, 0.3, 0.3 }, 2, 5));
+    }
+}
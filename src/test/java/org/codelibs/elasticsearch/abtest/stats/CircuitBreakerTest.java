@@ -0,0 +1,93 @@
+package org.codelibs.elasticsearch.abtest.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void test_failures() {
+        final CircuitBreaker breaker = new CircuitBreaker(10000L, 10, 0.5, 1000L, 0.5, 30000L);
+        final long now = 1000000L;
+        for (int i = 0; i < 5; i++) {
+            breaker.onResponse(now, 10L, CircuitBreaker.NO_PROBE);
+        }
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure(now, CircuitBreaker.NO_PROBE);
+        }
+        assertTrue(breaker.isClosed());
+
+        breaker.onFailure(now, CircuitBreaker.NO_PROBE);
+        assertEquals(CircuitBreaker.OPEN, breaker.state());
+        assertEquals(1L, breaker.trips());
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(now + 1000L));
+
+        // one probe after the open duration
+        final long probe = breaker.allowRequest(now + 30000L);
+        assertTrue(probe > 0);
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(now + 30000L));
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.state());
+
+        breaker.onResponse(now + 30100L, 10L, probe);
+        assertTrue(breaker.isClosed());
+        assertEquals(CircuitBreaker.NO_PROBE, breaker.allowRequest(now + 30200L));
+    }
+
+    @Test
+    public void test_slowResponses() {
+        final CircuitBreaker breaker = new CircuitBreaker(10000L, 10, 0.5, 1000L, 0.5, 30000L);
+        final long now = 1000000L;
+        for (int i = 0; i < 10; i++) {
+            breaker.onResponse(now, 2000L, CircuitBreaker.NO_PROBE);
+        }
+        assertEquals(CircuitBreaker.OPEN, breaker.state());
+
+        final long probe = breaker.allowRequest(now + 30000L);
+        assertTrue(probe > 0);
+        breaker.onResponse(now + 31000L, 2000L, probe);
+        assertEquals(CircuitBreaker.OPEN, breaker.state());
+        assertEquals(2L, breaker.trips());
+    }
+
+    @Test
+    public void test_onlyProbeDecides() {
+        final CircuitBreaker breaker = new CircuitBreaker(10000L, 10, 0.5, 1000L, 0.5, 30000L);
+        final long now = 1000000L;
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure(now, CircuitBreaker.NO_PROBE);
+        }
+        final long probe = breaker.allowRequest(now + 30000L);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.state());
+
+        // requests let through before the breaker opened complete late
+        breaker.onResponse(now + 30100L, 10L, CircuitBreaker.NO_PROBE);
+        breaker.onFailure(now + 30100L, CircuitBreaker.NO_PROBE);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.state());
+        assertEquals(1L, breaker.trips());
+
+        // a lost probe is replaced after its deadline, and the old ticket no longer decides
+        final long next = breaker.allowRequest(now + 60000L);
+        assertTrue(next > probe);
+        breaker.onFailure(now + 60100L, probe);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.state());
+        breaker.onResponse(now + 60100L, 10L, next);
+        assertTrue(breaker.isClosed());
+    }
+
+    @Test
+    public void test_slidingWindow() {
+        final CircuitBreaker breaker = new CircuitBreaker(10000L, 10, 0.5, 1000L, 0.5, 30000L);
+        final long now = 1000000L;
+        for (int i = 0; i < 9; i++) {
+            breaker.onFailure(now, CircuitBreaker.NO_PROBE);
+        }
+        // failures out of the window are forgotten
+        for (int i = 0; i < 5; i++) {
+            breaker.onFailure(now + 20000L, CircuitBreaker.NO_PROBE);
+        }
+        assertTrue(breaker.isClosed());
+    }
+}
@@ -0,0 +1,42 @@
+package org.codelibs.elasticsearch.abtest.stats;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void test_percentile() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(-1, LatencyHistogram.percentile(histogram.counts(), 50));
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(150);
+        }
+        histogram.record(60000);
+
+        final long[] counts = histogram.counts();
+        assertEquals(5, LatencyHistogram.percentile(counts, 50));
+        assertEquals(5, LatencyHistogram.percentile(counts, 90));
+        assertEquals(200, LatencyHistogram.percentile(counts, 99));
+        assertEquals(30000, LatencyHistogram.percentile(counts, 100));
+    }
+
+    @Test
+    public void test_merge() {
+        final TestCaseMetric metric = new TestCaseMetric();
+        metric.onResponse(1, 10);
+        metric.onFailure();
+        final TestCaseStats stats = metric.stats().copy();
+        stats.add(metric.stats());
+
+        assertEquals(4, stats.getCount());
+        assertEquals(2, stats.getFailures());
+        assertEquals(20, stats.getHits());
+        assertEquals(1, stats.getTookPercentile(100));
+    }
+}